@@ -0,0 +1,40 @@
+package pickle;
+
+import java.util.Comparator;
+
+/**
+ * Byte array helpers.
+ *
+ * @author Michael Lieberman
+ */
+public final class Bytes {
+
+	private Bytes() {
+
+	}
+
+	/**
+	 * Orders arrays the way LevelDB, CDB and Accumulo
+	 * do: unsigned bytes, shorter prefix first.
+	 */
+	public static final Comparator<byte[]> COMPARATOR = new Comparator<byte[]>() {
+		@Override
+		public int compare(byte[] a, byte[] b) {
+			return Bytes.compare(a, b);
+		}
+	};
+
+	public static int compare(byte[] a, byte[] b) {
+		int length = Math.min(a.length, b.length);
+
+		for (int i = 0; i < length; i++) {
+			int diff = (a[i] & 0xff) - (b[i] & 0xff);
+			if (diff != 0) {
+				return diff;
+			}
+		}
+
+		return a.length - b.length;
+	}
+
+}
@@ -0,0 +1,247 @@
+package pickle;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Registration;
+import com.esotericsoftware.kryo.util.DefaultClassResolver;
+import com.esotericsoftware.kryo.util.MapReferenceResolver;
+
+/**
+ * Assigns compact integer IDs to the classes pickled into a
+ * store, so Kryo writes a varint instead of the full class name
+ * in front of every key and value.
+ *
+ * Each store keeps its own registry in its metadata, and reloads
+ * it when opened.  A registry with no {@link Store} is frozen: it
+ * can read IDs it was loaded with, but any other class falls back
+ * to being written by name.  Data written by name is always
+ * readable, so stores written before registries existed keep working.
+ *
+ * @author Michael Lieberman
+ */
+public class ClassRegistry {
+
+	/**
+	 * Persists newly registered classes.  Called before any data
+	 * using the new ID is written.
+	 */
+	public static interface Store {
+
+		public void store(int id, String className);
+
+	}
+
+	/**
+	 * A store several writers register classes in at once, like a
+	 * table shared by several clients.  Instead of just storing the
+	 * next ID, the registry claims it, and if another writer's class
+	 * got it, adopts that and claims the next one.  Claims are made
+	 * without holding the registry's lock, so threads pickling
+	 * classes it already has don't wait on them.
+	 */
+	public static interface SharedStore extends Store {
+
+		/**
+		 * Claims the ID for the class, and returns the
+		 * class that got it, which may be another writer's.
+		 */
+		public String claim(int id, String className);
+
+	}
+
+	/** First ID not taken by Kryo's built-in registrations. */
+	public static final int FIRST_ID = new Kryo().getNextRegistrationId();
+
+	/** Empty frozen registry; everything is written by class name. */
+	public static final ClassRegistry NONE = new ClassRegistry(null);
+
+	private final Store store;
+	private final SortedMap<Integer, String> classes = new TreeMap<Integer, String>();
+	private final Map<String, Integer> ids = new TreeMap<String, Integer>();
+	private volatile int version;
+	private int nextId = FIRST_ID;
+
+	private final ThreadLocal<Pickler.Context> contexts = new ThreadLocal<Pickler.Context>() {
+		@Override
+		protected Pickler.Context initialValue() {
+			return newContext();
+		}
+	};
+
+	/**
+	 * Creates an empty registry.
+	 */
+	public ClassRegistry(Store store) {
+		this(null, store);
+	}
+
+	/**
+	 * Creates a registry with previously stored classes.
+	 */
+	public ClassRegistry(Map<Integer, String> classes, Store store) {
+		this.store = store;
+
+		if (classes != null) {
+			for (Map.Entry<Integer, String> entry : classes.entrySet()) {
+				add(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Returns a copy of the registered classes, by ID.
+	 */
+	public synchronized SortedMap<Integer, String> getClasses() {
+		return new TreeMap<Integer, String>(classes);
+	}
+
+	public boolean isFrozen() {
+		return store == null;
+	}
+
+	/**
+	 * Returns the ID for the given class, registering
+	 * and storing it if it doesn't have one yet.
+	 */
+	int idFor(Class<?> type) {
+		String name = type.getName();
+
+		synchronized (this) {
+			Integer id = ids.get(name);
+
+			if (id == null && !(store instanceof SharedStore)) {
+				id = nextId;
+				add(id, name);
+				store.store(id, name);
+			}
+
+			if (id != null) {
+				return id;
+			}
+		}
+
+		while (true) {
+			int claimed;
+			synchronized (this) {
+				Integer id = ids.get(name);
+				if (id != null) {
+					return id;
+				}
+				claimed = nextId;
+			}
+
+			String winner = ((SharedStore) store).claim(claimed, name);
+
+			synchronized (this) {
+				// Another thread may have merged it in meanwhile.
+				if (!classes.containsKey(claimed)) {
+					add(claimed, winner);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds classes registered elsewhere since this registry was
+	 * loaded, such as by another client of a {@link SharedStore}.
+	 * Returns whether there were any.
+	 */
+	public synchronized boolean merge(Map<Integer, String> stored) {
+		boolean added = false;
+
+		for (Map.Entry<Integer, String> entry : stored.entrySet()) {
+			if (!classes.containsKey(entry.getKey())) {
+				add(entry.getKey(), entry.getValue());
+				added = true;
+			}
+		}
+
+		return added;
+	}
+
+	private void add(int id, String className) {
+		classes.put(id, className);
+		// Writers racing to register a class can give it two IDs; either reads.
+		if (!ids.containsKey(className)) {
+			ids.put(className, id);
+		}
+		nextId = Math.max(nextId, id + 1);
+		version++;
+	}
+
+
+	/**
+	 * Returns this thread's context for this registry, or a
+	 * throwaway one if the thread's context is already in use.
+	 */
+	Pickler.Context acquire() {
+		Pickler.Context context = contexts.get();
+
+		if (context.inUse) {
+			context = newContext();
+		}
+
+		context.inUse = true;
+		sync(context);
+		return context;
+	}
+
+	void release(Pickler.Context context) {
+		Pickler.release(context);
+	}
+
+	private Pickler.Context newContext() {
+		return new Pickler.Context(new Kryo(new Resolver(), new MapReferenceResolver()));
+	}
+
+	/**
+	 * Registers any classes added since the context's Kryo last saw
+	 * this registry, e.g. ones registered by other threads.
+	 */
+	private void sync(Pickler.Context context) {
+		if (context.version == version) {
+			return;
+		}
+
+		synchronized (this) {
+			for (Map.Entry<Integer, String> entry : classes.entrySet()) {
+				if (context.kryo.getRegistration(entry.getKey()) != null) {
+					continue;
+				}
+
+				try {
+					Class<?> type = Class.forName(entry.getValue(), false, context.kryo.getClassLoader());
+					context.kryo.register(type, entry.getKey());
+
+				} catch (ClassNotFoundException e) {
+					// Not on the classpath; only matters if data using it is read.
+				}
+			}
+
+			context.version = version;
+		}
+	}
+
+
+	/**
+	 * Gives implicitly registered classes an ID from this
+	 * registry instead of writing them by name.
+	 */
+	private class Resolver extends DefaultClassResolver {
+
+		@Override
+		@SuppressWarnings("rawtypes")
+		public Registration registerImplicit(Class type) {
+			if (isFrozen()) {
+				return super.registerImplicit(type);
+			}
+
+			return register(new Registration(type, kryo.getDefaultSerializer(type), idFor(type)));
+		}
+
+	}
+
+}
@@ -1,9 +1,12 @@
 package pickle;
 
-import java.nio.ByteBuffer;
-import java.util.Arrays;
+import com.esotericsoftware.kryo.io.Output;
 
 /**
+ * Keys and values with a leading type byte.  The type byte is written
+ * into the same buffer the object is pickled into, and reading skips it
+ * in place, so neither direction makes an extra copy.
+ *
  * @author Michael Lieberman
  */
 public final class KV {
@@ -15,16 +18,39 @@ public final class KV {
 	public static enum Type {DATA, META};
 
 	public static <T> byte[] toBytes(Type type, T obj) {
-		byte[] pickled = Pickler.pickle(obj);
-		ByteBuffer buffer = ByteBuffer.allocate(1 + pickled.length);
-		buffer.put((byte) type.ordinal());
-		buffer.put(pickled);
-		return buffer.array();
+		return toBytes(type, obj, ClassRegistry.NONE);
+	}
+
+	public static <T> byte[] toBytes(Type type, T obj, ClassRegistry registry) {
+		Pickler.Context context = registry.acquire();
+
+		try {
+			Output output = context.output;
+			output.clear();
+			output.writeByte(type.ordinal());
+			context.kryo.writeClassAndObject(output, obj);
+			return output.toBytes();
+
+		} finally {
+			registry.release(context);
+		}
 	}
 
 	public static <T> T fromBytes(byte[] bytes) {
+		return fromBytes(bytes, ClassRegistry.NONE);
+	}
+
+	public static <T> T fromBytes(byte[] bytes, ClassRegistry registry) {
+		return fromBytes(bytes, 0, bytes.length, registry);
+	}
+
+	public static <T> T fromBytes(byte[] bytes, int offset, int length, ClassRegistry registry) {
 		// Skip the type byte at the beginning.
-		return Pickler.unpickle(Arrays.copyOfRange(bytes, 1, bytes.length));
+		return Pickler.unpickle(bytes, offset + 1, length - 1, registry);
+	}
+
+	public static Type typeOf(byte[] bytes) {
+		return Type.values()[bytes[0]];
 	}
 
 }
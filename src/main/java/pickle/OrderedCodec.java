@@ -0,0 +1,261 @@
+package pickle;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Encodes keys so that comparing the encoded bytes (unsigned,
+ * as {@link Bytes#compare} does) gives the same order as
+ * comparing the keys themselves, which Kryo's output doesn't.
+ *
+ * Every value starts with a type tag, so values of different
+ * types order by type first.  Numbers are big-endian with the
+ * sign bit flipped, strings are UTF-8 and byte arrays are raw,
+ * both with 0x00 escaped and a 0x00 0x00 terminator so that a
+ * prefix sorts first.  A List encodes as a tuple of its elements,
+ * compared element by element, and decodes as an ArrayList.
+ *
+ * Supported types are Boolean, Byte, Short, Integer, Long, Float,
+ * Double, String, byte[] and Lists of those.
+ *
+ * @author Michael Lieberman
+ */
+public final class OrderedCodec {
+
+	private OrderedCodec() {
+
+	}
+
+	protected static final int END = 0x00;
+	protected static final int FALSE = 0x10;
+	protected static final int TRUE = 0x11;
+	protected static final int BYTE = 0x20;
+	protected static final int SHORT = 0x21;
+	protected static final int INT = 0x22;
+	protected static final int LONG = 0x23;
+	protected static final int FLOAT = 0x28;
+	protected static final int DOUBLE = 0x29;
+	protected static final int STRING = 0x30;
+	protected static final int BYTES = 0x38;
+	protected static final int TUPLE = 0x40;
+
+	/** Follows an escaped 0x00 inside a string or byte array. */
+	protected static final int ESCAPE = 0xff;
+
+	protected static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Orders keys the way their encodings sort.
+	 */
+	public static final Comparator<Object> COMPARATOR = new Comparator<Object>() {
+		@Override
+		public int compare(Object a, Object b) {
+			return Bytes.compare(encode(a), encode(b));
+		}
+	};
+
+	public static byte[] encode(Object obj) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		write(out, obj);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Writes the encoding of obj after a prefix,
+	 * e.g. a {@link KV.Type} byte.
+	 */
+	public static byte[] encode(int prefix, Object obj) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(prefix);
+		write(out, obj);
+		return out.toByteArray();
+	}
+
+	public static <T> T decode(byte[] bytes) {
+		return decode(bytes, 0, bytes.length);
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <T> T decode(byte[] bytes, int offset, int length) {
+		Reader reader = new Reader(bytes, offset, offset + length);
+		Object obj = reader.read();
+
+		if (reader.position != reader.end) {
+			throw new IllegalArgumentException("Trailing bytes after ordered value");
+		}
+
+		return (T) obj;
+	}
+
+
+	protected static void write(ByteArrayOutputStream out, Object obj) {
+		if (obj instanceof Boolean) {
+			out.write((Boolean) obj ? TRUE : FALSE);
+		}
+		else if (obj instanceof Byte) {
+			out.write(BYTE);
+			out.write((Byte) obj ^ 0x80);
+		}
+		else if (obj instanceof Short) {
+			out.write(SHORT);
+			writeLong(out, (Short) obj ^ Short.MIN_VALUE, 2);
+		}
+		else if (obj instanceof Integer) {
+			out.write(INT);
+			writeLong(out, (Integer) obj ^ Integer.MIN_VALUE, 4);
+		}
+		else if (obj instanceof Long) {
+			out.write(LONG);
+			writeLong(out, (Long) obj ^ Long.MIN_VALUE, 8);
+		}
+		else if (obj instanceof Float) {
+			int bits = Float.floatToIntBits((Float) obj);
+			out.write(FLOAT);
+			// Negatives flip entirely so that more negative sorts first.
+			writeLong(out, bits < 0 ? ~bits : bits ^ Integer.MIN_VALUE, 4);
+		}
+		else if (obj instanceof Double) {
+			long bits = Double.doubleToLongBits((Double) obj);
+			out.write(DOUBLE);
+			writeLong(out, bits < 0 ? ~bits : bits ^ Long.MIN_VALUE, 8);
+		}
+		else if (obj instanceof String) {
+			out.write(STRING);
+			writeEscaped(out, ((String) obj).getBytes(UTF8));
+		}
+		else if (obj instanceof byte[]) {
+			out.write(BYTES);
+			writeEscaped(out, (byte[]) obj);
+		}
+		else if (obj instanceof List) {
+			out.write(TUPLE);
+			for (Object element : (List<?>) obj) {
+				write(out, element);
+			}
+			out.write(END);
+		}
+		else {
+			throw new IllegalArgumentException("Can't encode " +
+					(obj != null ? obj.getClass().getName() : "null") + " in order");
+		}
+	}
+
+	protected static void writeLong(ByteArrayOutputStream out, long value, int bytes) {
+		for (int shift = (bytes - 1) * 8; shift >= 0; shift -= 8) {
+			out.write((int) (value >>> shift));
+		}
+	}
+
+	protected static void writeEscaped(ByteArrayOutputStream out, byte[] bytes) {
+		for (byte b : bytes) {
+			out.write(b);
+			if (b == 0) {
+				out.write(ESCAPE);
+			}
+		}
+		out.write(0);
+		out.write(0);
+	}
+
+
+	protected static class Reader {
+
+		protected final byte[] bytes;
+		protected int position;
+		protected final int end;
+
+		public Reader(byte[] bytes, int position, int end) {
+			this.bytes = bytes;
+			this.position = position;
+			this.end = end;
+		}
+
+		public Object read() {
+			int tag = next();
+
+			switch (tag) {
+			case FALSE:
+				return false;
+			case TRUE:
+				return true;
+			case BYTE:
+				return (byte) (next() ^ 0x80);
+			case SHORT:
+				return (short) (readLong(2) ^ Short.MIN_VALUE);
+			case INT:
+				return (int) readLong(4) ^ Integer.MIN_VALUE;
+			case LONG:
+				return readLong(8) ^ Long.MIN_VALUE;
+			case FLOAT: {
+				int bits = (int) readLong(4);
+				return Float.intBitsToFloat(bits < 0 ? bits ^ Integer.MIN_VALUE : ~bits);
+			}
+			case DOUBLE: {
+				long bits = readLong(8);
+				return Double.longBitsToDouble(bits < 0 ? bits ^ Long.MIN_VALUE : ~bits);
+			}
+			case STRING:
+				return new String(readEscaped(), UTF8);
+			case BYTES:
+				return readEscaped();
+			case TUPLE: {
+				List<Object> tuple = new ArrayList<Object>();
+				while (peek() != END) {
+					tuple.add(read());
+				}
+				position++;
+				return tuple;
+			}
+			default:
+				throw new IllegalArgumentException("Unknown ordered type tag " + tag);
+			}
+		}
+
+		protected int peek() {
+			if (position >= end) {
+				throw new IllegalArgumentException("Truncated ordered value");
+			}
+			return bytes[position] & 0xff;
+		}
+
+		protected int next() {
+			int b = peek();
+			position++;
+			return b;
+		}
+
+		protected long readLong(int length) {
+			long value = 0;
+			for (int i = 0; i < length; i++) {
+				value = (value << 8) | next();
+			}
+			return value;
+		}
+
+		protected byte[] readEscaped() {
+			byte[] out = new byte[16];
+			int length = 0;
+
+			while (true) {
+				int b = next();
+
+				if (b == 0) {
+					if (next() != ESCAPE) {
+						return Arrays.copyOf(out, length);
+					}
+				}
+
+				if (length == out.length) {
+					out = Arrays.copyOf(out, length * 2);
+				}
+				out[length++] = (byte) b;
+			}
+		}
+
+	}
+
+}
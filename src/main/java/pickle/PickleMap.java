@@ -1,5 +1,6 @@
 package pickle;
 
+import java.util.Collection;
 import java.util.Map;
 
 /**
@@ -7,6 +8,26 @@ import java.util.Map;
  */
 public interface PickleMap<K, V> extends Map<K, V> {
 
+	/**
+	 * Stores a value without reading the old one first, as
+	 * put() has to in order to return it.  Backends that keep
+	 * a stored size recount it on the next call to size().
+	 */
+	public void set(K key, V value);
+
+	/**
+	 * Looks up many keys at once, in as few round trips to the
+	 * backing store as it allows.  Keys that aren't found are
+	 * left out of the result.
+	 */
+	public Map<K, V> getMany(Collection<? extends K> keys);
+
+	/**
+	 * Removes all of the given keys, batching the deletes
+	 * where the backing store supports it.
+	 */
+	public void removeAll(Collection<?> keys);
+
 	/**
 	 * Flushes any in-memory keys/values to the backing store.
 	 */
@@ -3,6 +3,7 @@ package pickle;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -13,26 +14,61 @@ import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
 
 /**
+ * Kryo is not thread-safe, so every thread gets its own
+ * {@link Context} holding a Kryo instance and reusable
+ * input/output buffers.  This lets any number of threads
+ * pickle and unpickle concurrently without locking, and
+ * without allocating new streams on every call.
+ *
+ * Contexts belong to a {@link ClassRegistry}; the methods
+ * without a registry argument use {@link ClassRegistry#NONE}.
+ *
  * @author Michael Lieberman
  */
 public class Pickler {
 
-	private static final Kryo KRYO = new Kryo();
+	/** Initial size of the per-thread output buffer. */
+	static final int BUFFER_SIZE = 4096;
+
+	/** Buffers that grow past this size are not kept around between calls. */
+	static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
+	private static final byte[] EMPTY = new byte[0];
 
 	public static <T> byte[] pickle(T o) {
 		return pickle(o, false);
 	}
 
 	public static <T> byte[] pickle(T o, boolean compressed) {
+		return pickle(o, ClassRegistry.NONE, compressed);
+	}
+
+	public static <T> byte[] pickle(T o, ClassRegistry registry) {
+		return pickle(o, registry, false);
+	}
+
+	public static <T> byte[] pickle(T o, ClassRegistry registry, boolean compressed) {
+		Context context = registry.acquire();
+
 		try {
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			Output output = new Output(compressed ? new GZIPOutputStream(baos) : baos);
-			KRYO.writeClassAndObject(output, o);
-			output.close();
-			return baos.toByteArray();
+			if (compressed) {
+				ByteArrayOutputStream baos = new ByteArrayOutputStream();
+				Output output = new Output(new GZIPOutputStream(baos));
+				context.kryo.writeClassAndObject(output, o);
+				output.close();
+				return baos.toByteArray();
+			}
+			else {
+				Output output = context.output;
+				output.clear();
+				context.kryo.writeClassAndObject(output, o);
+				return output.toBytes();
+			}
 
 		} catch (IOException e) {
 			throw new RuntimeException(e);
+		} finally {
+			registry.release(context);
 		}
 	}
 
@@ -40,26 +76,83 @@ public class Pickler {
 		return unpickle(data, false);
 	}
 
-	@SuppressWarnings("unchecked")
 	public static <T> T unpickle(byte[] data, boolean compressed) {
+		return unpickle(data, ClassRegistry.NONE, compressed);
+	}
+
+	public static <T> T unpickle(byte[] data, ClassRegistry registry) {
+		return unpickle(data, registry, false);
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <T> T unpickle(byte[] data, ClassRegistry registry, boolean compressed) {
+		Context context = registry.acquire();
+
 		try {
-			ByteArrayInputStream bais = new ByteArrayInputStream(data);
-			Input input = new Input(compressed ? new GZIPInputStream(bais) : bais);
-			T obj = (T) KRYO.readClassAndObject(input);
-			input.close();
-			return obj;
+			if (compressed) {
+				Input input = new Input(new GZIPInputStream(new ByteArrayInputStream(data)));
+				T obj = (T) context.kryo.readClassAndObject(input);
+				input.close();
+				return obj;
+			}
+			else {
+				return (T) read(context, data, 0, data.length);
+			}
 
 		} catch (IOException e) {
 			throw new RuntimeException(e);
+		} finally {
+			registry.release(context);
+		}
+	}
+
+	public static <T> T unpickle(byte[] data, int offset, int length) {
+		return unpickle(data, offset, length, ClassRegistry.NONE);
+	}
+
+	/**
+	 * Unpickles a slice of an array without copying it out first.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T unpickle(byte[] data, int offset, int length, ClassRegistry registry) {
+		Context context = registry.acquire();
+
+		try {
+			return (T) read(context, data, offset, length);
+		} finally {
+			registry.release(context);
 		}
 	}
 
+	/**
+	 * Unpickles the buffer's remaining bytes, without copying
+	 * if the buffer is backed by an array.  Doesn't change the
+	 * buffer's position.
+	 */
+	public static <T> T unpickle(ByteBuffer buffer, ClassRegistry registry) {
+		if (buffer.hasArray()) {
+			return unpickle(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), registry);
+		}
+
+		byte[] data = new byte[buffer.remaining()];
+		buffer.duplicate().get(data);
+		return unpickle(data, 0, data.length, registry);
+	}
+
 	public static <T> String pickleToString(T o) {
 		return pickleToString(o, false);
 	}
 
 	public static <T> String pickleToString(T o, boolean compressed) {
-		return new String(Base64.encodeBase64(pickle(o), compressed));
+		return pickleToString(o, ClassRegistry.NONE, compressed);
+	}
+
+	public static <T> String pickleToString(T o, ClassRegistry registry) {
+		return pickleToString(o, registry, false);
+	}
+
+	public static <T> String pickleToString(T o, ClassRegistry registry, boolean compressed) {
+		return new String(Base64.encodeBase64(pickle(o, registry), compressed));
 	}
 
 	public static <T> T unpickleFromString(String data) {
@@ -67,7 +160,55 @@ public class Pickler {
 	}
 
 	public static <T> T unpickleFromString(String data, boolean compressed) {
-		return unpickle(Base64.decodeBase64(data), compressed);
+		return unpickleFromString(data, ClassRegistry.NONE, compressed);
+	}
+
+	public static <T> T unpickleFromString(String data, ClassRegistry registry) {
+		return unpickleFromString(data, registry, false);
+	}
+
+	public static <T> T unpickleFromString(String data, ClassRegistry registry, boolean compressed) {
+		return unpickle(Base64.decodeBase64(data), registry, compressed);
+	}
+
+
+	static Object read(Context context, byte[] data, int offset, int length) {
+		Input input = context.input;
+		// Kryo takes the end of the slice here, not its length.
+		input.setBuffer(data, offset, offset + length);
+		return context.kryo.readClassAndObject(input);
+	}
+
+	static void release(Context context) {
+		context.inUse = false;
+
+		// Don't pin the last input array or an oversized output buffer.
+		context.input.setBuffer(EMPTY);
+		if (context.output.getBuffer().length > MAX_RETAINED_BUFFER_SIZE) {
+			context.output = new Output(BUFFER_SIZE, -1);
+		}
+	}
+
+
+	/**
+	 * Per-thread serialization state.
+	 */
+	static final class Context {
+
+		final Kryo kryo;
+		Output output;
+		final Input input;
+		boolean inUse;
+
+		/** Registry version this context's Kryo has registered up to. */
+		int version;
+
+		Context(Kryo kryo) {
+			this.kryo = kryo;
+			this.output = new Output(BUFFER_SIZE, -1);
+			this.input = new Input();
+		}
+
 	}
 
 }
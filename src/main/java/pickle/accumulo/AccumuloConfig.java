@@ -0,0 +1,92 @@
+package pickle.accumulo;
+
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.TableNotFoundException;
+
+/**
+ * Writer settings for {@link AccumuloMap}, with setters that chain
+ * like {@link pickle.leveldb.LevelDBConfig}'s.  The writer defaults
+ * are what AccumuloMap has always used: a 1 MB buffer, 10 ms
+ * latency and 2 writer threads.
+ *
+ * @author Michael Lieberman
+ */
+public class AccumuloConfig {
+
+	protected long maxMemory = 1000000L;
+	protected long maxLatency = 10L;
+	protected int writeThreads = 2;
+	protected long flushBytes = 500000L;
+	protected int counterShards = 16;
+
+	/**
+	 * Size of the BatchWriter's buffer, in bytes.
+	 */
+	public AccumuloConfig maxMemory(long maxMemory) {
+		this.maxMemory = maxMemory;
+		return this;
+	}
+
+	public long maxMemory() {
+		return maxMemory;
+	}
+
+	/**
+	 * Longest a write waits to be flushed when nobody's waiting
+	 * on it, in milliseconds.
+	 */
+	public AccumuloConfig maxLatency(long maxLatency) {
+		this.maxLatency = maxLatency;
+		return this;
+	}
+
+	public long maxLatency() {
+		return maxLatency;
+	}
+
+	/**
+	 * Number of threads sending mutations to the tablet servers.
+	 */
+	public AccumuloConfig writeThreads(int writeThreads) {
+		this.writeThreads = writeThreads;
+		return this;
+	}
+
+	public int writeThreads() {
+		return writeThreads;
+	}
+
+	/**
+	 * Bytes of mutations that start a flush without waiting
+	 * out maxLatency.  Keep it under maxMemory, or the buffer
+	 * fills and writes block first.
+	 */
+	public AccumuloConfig flushBytes(long flushBytes) {
+		this.flushBytes = flushBytes;
+		return this;
+	}
+
+	public long flushBytes() {
+		return flushBytes;
+	}
+
+	/**
+	 * Number of rows the row count is spread over.  Changing it
+	 * for an existing table is fine; size() sums whatever's there.
+	 */
+	public AccumuloConfig counterShards(int counterShards) {
+		this.counterShards = counterShards;
+		return this;
+	}
+
+	public int counterShards() {
+		return counterShards;
+	}
+
+	public GroupCommitWriter toWriter(Connector conn, String table) throws TableNotFoundException {
+		BatchWriter writer = conn.createBatchWriter(table, maxMemory, maxLatency, writeThreads);
+		return new GroupCommitWriter(writer, maxLatency, flushBytes);
+	}
+
+}
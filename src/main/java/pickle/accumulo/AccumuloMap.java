@@ -2,15 +2,28 @@ package pickle.accumulo;
 
 import java.util.AbstractMap;
 import java.util.AbstractSet;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.accumulo.core.Constants;
 import org.apache.accumulo.core.client.AccumuloException;
 import org.apache.accumulo.core.client.AccumuloSecurityException;
-import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.BatchScanner;
 import org.apache.accumulo.core.client.Connector;
 import org.apache.accumulo.core.client.IteratorSetting;
 import org.apache.accumulo.core.client.MutationsRejectedException;
@@ -18,19 +31,48 @@ import org.apache.accumulo.core.client.Scanner;
 import org.apache.accumulo.core.client.TableExistsException;
 import org.apache.accumulo.core.client.TableNotFoundException;
 import org.apache.accumulo.core.client.admin.TableOperations;
+import org.apache.accumulo.core.data.ArrayByteSequence;
+import org.apache.accumulo.core.data.ByteSequence;
 import org.apache.accumulo.core.data.Key;
 import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.PartialKey;
 import org.apache.accumulo.core.data.Range;
 import org.apache.accumulo.core.data.Value;
 import org.apache.accumulo.core.iterators.Combiner;
 import org.apache.accumulo.core.iterators.LongCombiner;
+import org.apache.accumulo.core.iterators.SortedKeyIterator;
 import org.apache.accumulo.core.iterators.user.SummingCombiner;
 import org.apache.hadoop.io.Text;
 
+import pickle.ClassRegistry;
 import pickle.PickleMap;
 import pickle.Pickler;
 
+import com.esotericsoftware.kryo.KryoException;
+
 /**
+ * Writes go through a {@link GroupCommitWriter}.  With autoflush,
+ * each write waits until it's flushed, but callers writing at the
+ * same time share one flush instead of taking turns.  Without it,
+ * writes return straight away and are flushed by size or after
+ * the configured latency.  Either way this map's own writes are
+ * flushed before it reads them: a read of a key flushes only if
+ * that key has a write pending, and scans and size() flush all.
+ * Every read makes its own Scanner, so the map can be read from
+ * several threads at once.
+ *
+ * The row count is kept in several counter rows under the metadata
+ * row, picked by a hash of each key, and size() sums them with one
+ * small scan.  New tables get a tablet per counter row, so counting
+ * writes are spread over the tablet servers instead of all hitting
+ * one.  Tables counted in the metadata row itself still work, as
+ * that count is summed with the others.
+ *
+ * Clients sharing a table share its class registry.  A new class ID
+ * is claimed in the metadata row and read back, and if another
+ * client claimed it first, that client's class is adopted for it.
+ * Data with an ID this client hasn't seen reloads the registry.
+ *
  * @author Michael Lieberman
  */
 public class AccumuloMap<K, V> extends AbstractMap<K, V> implements PickleMap<K, V> {
@@ -38,13 +80,56 @@ public class AccumuloMap<K, V> extends AbstractMap<K, V> implements PickleMap<K,
 	protected static final Text EMPTY = new Text();
 
 	protected static final Text METAROW = new Text("!METADATA");
+	protected static final ByteSequence METAROWDATA = new ArrayByteSequence(METAROW.getBytes(), 0, METAROW.getLength());
+	protected static final String COUNTROW = METAROW+"/";
 	protected static final Text COUNTCF = new Text("count");
+	protected static final Text CLASSCF = new Text("class");
+	protected static final Text STALECF = new Text("stale");
+	protected static final Text CLAIMCF = new Text("classClaim");
+	protected static final Text FENCECF = new Text("fence");
+	/** Marks a table whose row IDs are ordered, as NavigableAccumuloMap writes them. */
+	protected static final Text KEYSCF = new Text("keys");
+	protected static final Text ORDERED = new Text("ordered");
+
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+	public static final int DEFAULT_QUERY_THREADS = 4;
+	public static final int DEFAULT_SCAN_THREADS = 8;
+
+	/** Longest claimClass() waits for its claim to be fenced, in milliseconds. */
+	protected static final long CLAIM_TIMEOUT = 10000L;
+	protected static final long MAX_CLAIM_BACKOFF = 100L;
+
+	/** Runs after the table's own iterators (the count combiner is at 10). */
+	protected static final int KEYS_ONLY_PRIORITY = 50;
+	protected static final int FILTER_PRIORITY = 50;
 
 	protected Connector conn;
 	protected String table;
 	protected boolean autoflush;
-	protected Scanner scanner;
-	protected BatchWriter writer;
+	protected GroupCommitWriter writer;
+	protected AccumuloConfig config;
+	protected Text[] counterRows;
+	protected ClassRegistry registry;
+	protected int batchSize = DEFAULT_BATCH_SIZE;
+	protected int queryThreads = DEFAULT_QUERY_THREADS;
+	protected int scanThreads = DEFAULT_SCAN_THREADS;
+
+	/**
+	 * Receives the entries of a {@link AccumuloMap#scan}, from
+	 * several threads at once.
+	 */
+	public static interface Visitor<K, V> {
+		public void visit(K key, V value);
+	}
+
+	/**
+	 * Picks the entries a {@link AccumuloMap#scan} returns, on the
+	 * tablet servers.  It's pickled to get there, so it needs a
+	 * no-arg constructor, which rules out anonymous classes.
+	 */
+	public static interface Predicate<K, V> {
+		public boolean accept(K key, V value);
+	}
 
 	public AccumuloMap(Connector conn, String table) throws AccumuloException {
 		this(conn, table, true);
@@ -56,21 +141,31 @@ public class AccumuloMap<K, V> extends AbstractMap<K, V> implements PickleMap<K,
 
 	public AccumuloMap(Connector conn, String table,
 			boolean autoflush, boolean create) throws AccumuloException {
+		this(conn, table, autoflush, create, new AccumuloConfig());
+	}
+
+	public AccumuloMap(Connector conn, String table,
+			boolean autoflush, boolean create, AccumuloConfig config) throws AccumuloException {
 		try {
 			this.conn = conn;
 			this.table = table;
 			this.autoflush = autoflush;
+			this.config = config;
+			this.counterRows = counterRows(config.counterShards());
 
 			if (create) {
 				recreateTable();
 			}
 
-			initScannerAndWriter();
+			initWriter();
 
 			if (create) {
 				resetCount();
 			}
 
+			loadRegistry(create);
+			checkKeyOrder();
+
 		} catch (AccumuloSecurityException e) {
 			throw new AccumuloException(e);
 		} catch (TableExistsException e) {
@@ -98,22 +193,306 @@ public class AccumuloMap<K, V> extends AbstractMap<K, V> implements PickleMap<K,
 		LongCombiner.setEncodingType(settings, LongCombiner.StringEncoder.class);
 
 		ops.attachIterator(table, settings);
+
+		// Give each counter row a tablet of its own, for the balancer to
+		// spread.  It's only for spreading them, so instances that can't
+		// split, like a MockInstance, go without.
+		try {
+			ops.addSplits(table, new TreeSet<Text>(Arrays.asList(counterRows)));
+		} catch (UnsupportedOperationException e) {
+			// One tablet it is.
+		}
 	}
 
-	protected void initScannerAndWriter() throws TableNotFoundException {
-		this.scanner = conn.createScanner(table, Constants.NO_AUTHS);
+	protected static Text[] counterRows(int shards) {
+		Text[] rows = new Text[shards];
+		for (int i = 0; i < shards; i++) {
+			rows[i] = new Text(String.format("%s%03d", COUNTROW, i));
+		}
+		return rows;
+	}
 
-		this.writer = conn.createBatchWriter(table, 1000000L, 10L, 2);
+	/**
+	 * Whether a row is the metadata row or a counter row under it.
+	 */
+	protected static boolean isMetaRow(ByteSequence row) {
+		return row.length() >= METAROWDATA.length()
+				&& row.subSequence(0, METAROWDATA.length()).equals(METAROWDATA);
+	}
+
+	protected void initWriter() throws TableNotFoundException {
+		this.writer = config.toWriter(conn, table);
+	}
+
+	/**
+	 * With autoflush, waits until the writes so far are flushed.
+	 */
+	protected void commit() throws MutationsRejectedException {
 		if (autoflush) {
-			this.writer = new FlushedBatchWriter(writer);
+			writer.flush();
+		}
+	}
+
+	/**
+	 * Flushes any pending writes, so a read sees them.
+	 * Costs nothing when everything's already flushed.
+	 */
+	protected void sync() {
+		try {
+			writer.flush();
+		} catch (MutationsRejectedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Flushes the row's pending writes, if it has any,
+	 * so a read of it sees them.
+	 */
+	protected void sync(Text row) {
+		try {
+			writer.flush(row);
+		} catch (MutationsRejectedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Whether row IDs sort in key order, rather than being pickles.
+	 */
+	protected boolean orderedKeys() {
+		return false;
+	}
+
+	/**
+	 * Refuses a table whose row IDs were written the other way,
+	 * and marks an empty one as written with ordered keys.
+	 */
+	protected void checkKeyOrder() throws AccumuloException {
+		boolean ordered = firstEntry(metaScanner(KEYSCF)) != null;
+
+		if (ordered && !orderedKeys()) {
+			close();
+			throw new IllegalStateException(table + " was written with ordered keys");
+		}
+
+		if (!ordered && orderedKeys()) {
+			if (getCount() > 0) {
+				close();
+				throw new IllegalStateException(table + " was written with unordered keys");
+			}
+
+			Mutation m = new Mutation(METAROW);
+			m.put(KEYSCF, EMPTY, new Value(ORDERED.getBytes(), 0, ORDERED.getLength()));
+			writer.addMutation(m);
+			writer.flush();
+		}
+	}
+
+	protected void loadRegistry(boolean create) throws AccumuloException {
+		Map<Integer, String> classes = new TreeMap<Integer, String>();
+		boolean found = !create && loadClasses(classes);
+
+		if (!create && !found && getCount() > 0) {
+			// Written before class registries; keep writing class names.
+			registry = ClassRegistry.NONE;
+			return;
+		}
+
+		if (!found) {
+			storeClass(EMPTY, EMPTY);
+		}
+
+		registry = new ClassRegistry(classes, new ClassRegistry.SharedStore() {
+			@Override
+			public void store(int id, String className) {
+				try {
+					storeClass(new Text(Integer.toString(id)), new Text(className));
+				} catch (AccumuloException e) {
+					throw new RuntimeException(e);
+				}
+			}
+
+			@Override
+			public String claim(int id, String className) {
+				return claimClass(id, className);
+			}
+		});
+	}
+
+	/**
+	 * Reads the stored classes, and returns whether the
+	 * table has a registry at all.
+	 */
+	protected boolean loadClasses(Map<Integer, String> classes) {
+		boolean found = false;
+
+		for (Map.Entry<Key, Value> entry : metaScanner(CLASSCF)) {
+			found = true;
+
+			// The empty qualifier just marks the table as having a registry.
+			String id = entry.getKey().getColumnQualifier().toString();
+			if (id.length() > 0) {
+				classes.put(Integer.valueOf(id), new String(entry.getValue().get()));
+			}
+		}
+
+		return found;
+	}
+
+	/**
+	 * Picks up classes other clients registered since the registry
+	 * was loaded, and returns whether there were any.
+	 */
+	protected boolean reloadRegistry() {
+		if (registry.isFrozen()) {
+			return false;
+		}
+
+		Map<Integer, String> classes = new TreeMap<Integer, String>();
+		loadClasses(classes);
+		return registry.merge(classes);
+	}
+
+	protected Scanner metaScanner(Text columnFamily) {
+		return columnScanner(new Range(METAROW), columnFamily);
+	}
+
+	protected void storeClass(Text id, Text className) throws AccumuloException {
+		Mutation m = new Mutation(METAROW);
+		m.put(CLASSCF, id, new Value(className.getBytes(), 0, className.getLength()));
+		writer.addMutation(m);
+
+		// Make sure the registration lands before data that uses it.
+		writer.flush();
+	}
+
+	/**
+	 * Claims a class ID, and returns the class that got it.  Every
+	 * claim is kept, under the ID and class name, and the one the
+	 * tablet server timestamped first wins, ties going to the lower
+	 * name.  A tablet's timestamps never go backwards, so once a
+	 * write to the metadata row is timestamped after this claim,
+	 * every claim that could beat it is already there to read.
+	 * Each such fence is read back in the same scan as the ID's
+	 * claims, backing off between tries, for up to CLAIM_TIMEOUT.
+	 * The winner is then stored like any other class.
+	 */
+	protected String claimClass(int id, String className) {
+		try {
+			// Another client may have got there first.
+			reloadRegistry();
+			String stored = registry.getClasses().get(id);
+			if (stored != null) {
+				return stored;
+			}
+
+			String prefix = id+"/";
+			Mutation m = new Mutation(METAROW);
+			m.put(CLAIMCF, new Text(prefix+className), new Value(new byte[0]));
+			writer.addMutation(m);
+			writer.flush();
+
+			// From the ID's claims to the end of the metadata row.
+			Range claims = new Range(new Key(METAROW, CLAIMCF, new Text(prefix)), true,
+					new Key(METAROW).followingKey(PartialKey.ROW), false);
+			long deadline = System.currentTimeMillis() + CLAIM_TIMEOUT;
+			long backoff = 1;
+
+			while (true) {
+				fence();
+
+				long claimed = -1;
+				long fenced = -1;
+				String winner = null;
+				long won = Long.MAX_VALUE;
+
+				for (Map.Entry<Key, Value> entry : columnScanner(claims, CLAIMCF, FENCECF)) {
+					Key key = entry.getKey();
+					long timestamp = key.getTimestamp();
+
+					if (key.getColumnFamily().equals(FENCECF)) {
+						fenced = timestamp;
+						continue;
+					}
+
+					String claim = key.getColumnQualifier().toString();
+					if (!claim.startsWith(prefix)) {
+						continue;
+					}
+
+					String claimant = claim.substring(prefix.length());
+					if (claimant.equals(className)) {
+						claimed = timestamp;
+					}
+					if (timestamp < won || timestamp == won && claimant.compareTo(winner) < 0) {
+						winner = claimant;
+						won = timestamp;
+					}
+				}
+
+				if (claimed >= 0 && fenced > claimed) {
+					// Every claimant stores the same winner, so one dying doesn't leave it unstored.
+					storeClass(new Text(Integer.toString(id)), new Text(winner));
+					return winner;
+				}
+
+				if (System.currentTimeMillis() >= deadline) {
+					throw new IllegalStateException("Timed out claiming class ID "+id+" for "+className+" in "+table);
+				}
+
+				Thread.sleep(backoff);
+				backoff = Math.min(backoff * 2, MAX_CLAIM_BACKOFF);
+			}
+
+		} catch (AccumuloException e) {
+			throw new RuntimeException(e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Writes to the metadata row, for claimClass() to
+	 * read back the timestamp the tablet server gave it.
+	 */
+	protected void fence() throws AccumuloException {
+		Mutation m = new Mutation(METAROW);
+		m.put(FENCECF, EMPTY, new Value(new byte[0]));
+		writer.addMutation(m);
+		writer.flush();
+	}
+
+	/**
+	 * Unpickles with the registry, reloading it first if the data
+	 * uses a class another client registered since it was loaded.
+	 */
+	protected <T> T unpickle(byte[] data, int offset, int length) {
+		try {
+			return Pickler.unpickle(data, offset, length, registry);
+		} catch (KryoException e) {
+			if (!reloadRegistry()) {
+				throw e;
+			}
+			return Pickler.unpickle(data, offset, length, registry);
 		}
 	}
 
+	protected <T> T unpickle(byte[] data) {
+		return this.<T>unpickle(data, 0, data.length);
+	}
+
 	@Override
 	public Set<Map.Entry<K, V>> entrySet() {
 		return new EntrySet();
 	}
 
+	@Override
+	public Set<K> keySet() {
+		return new KeySet();
+	}
+
 	@Override
 	public boolean containsKey(Object key) {
 		return get(key) != null;
@@ -121,9 +500,61 @@ public class AccumuloMap<K, V> extends AbstractMap<K, V> implements PickleMap<K,
 
 	@Override
 	public V get(Object key) {
-		scanner.setRange(new Range(toRowId(key)));
-		Map.Entry<Key, Value> entry = firstEntry(scanner);
-		return entry != null ? Pickler.<V>unpickle(entry.getValue().get()) : null;
+		Text row = toRowId(key);
+		sync(row);
+		Map.Entry<Key, Value> entry = firstEntry(newScanner(new Range(row), false));
+		return entry != null ? this.<V>unpickle(entry.getValue().get()) : null;
+	}
+
+	/**
+	 * Looks keys up with a BatchScanner over one
+	 * Range per key, batchSize keys at a time.
+	 */
+	@Override
+	public Map<K, V> getMany(Collection<? extends K> keys) {
+		Map<K, V> found = new HashMap<K, V>();
+		Map<Text, K> chunk = new HashMap<Text, K>();
+
+		for (K key : keys) {
+			chunk.put(toRowId(key), key);
+
+			if (chunk.size() == batchSize) {
+				scanRows(chunk, found);
+				chunk.clear();
+			}
+		}
+
+		if (!chunk.isEmpty()) {
+			scanRows(chunk, found);
+		}
+
+		return found;
+	}
+
+	protected void scanRows(Map<Text, K> rows, Map<K, V> found) {
+		List<Range> ranges = new ArrayList<Range>(rows.size());
+		for (Text row : rows.keySet()) {
+			ranges.add(new Range(row));
+			sync(row);
+		}
+
+		BatchScanner batchScanner;
+		try {
+			batchScanner = conn.createBatchScanner(table, Constants.NO_AUTHS, queryThreads);
+		} catch (TableNotFoundException e) {
+			throw new RuntimeException(e);
+		}
+
+		// Its query threads outlive a failed unpickle otherwise.
+		try {
+			batchScanner.setRanges(ranges);
+
+			for (Map.Entry<Key, Value> entry : batchScanner) {
+				found.put(rows.get(entry.getKey().getRow()), this.<V>unpickle(entry.getValue().get()));
+			}
+		} finally {
+			batchScanner.close();
+		}
 	}
 
 	@Override
@@ -131,14 +562,17 @@ public class AccumuloMap<K, V> extends AbstractMap<K, V> implements PickleMap<K,
 		try {
 			V old = get(key);
 
-			Mutation m = new Mutation(toRowId(key));
+			Text row = toRowId(key);
+			Mutation m = new Mutation(row);
 			m.put(EMPTY, EMPTY, toValue(value));
 			writer.addMutation(m);
 
+			// Counted even when a recount is due, as that corrects by the difference.
 			if (old == null) {
-				incrementCount();
+				incrementCount(row);
 			}
 
+			commit();
 			return old;
 
 		} catch (AccumuloException e) {
@@ -146,14 +580,236 @@ public class AccumuloMap<K, V> extends AbstractMap<K, V> implements PickleMap<K,
 		}
 	}
 
+	@Override
+	public void set(K key, V value) {
+		try {
+			Text row = toRowId(key);
+			markSizeStale(row);
+
+			Mutation m = new Mutation(row);
+			m.put(EMPTY, EMPTY, toValue(value));
+			writer.addMutation(m);
+			commit();
+
+		} catch (AccumuloException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Writes the entries blind, like set(), handing the
+	 * writer one list of mutations per chunk of batchSize.
+	 */
+	@Override
+	public void putAll(Map<? extends K, ? extends V> m) {
+		try {
+			List<Mutation> mutations = new ArrayList<Mutation>();
+			for (Map.Entry<? extends K, ? extends V> entry : m.entrySet()) {
+				Text row = toRowId(entry.getKey());
+				if (mutations.isEmpty()) {
+					markSizeStale(row);
+				}
+
+				Mutation mutation = new Mutation(row);
+				mutation.put(EMPTY, EMPTY, toValue(entry.getValue()));
+				mutations.add(mutation);
+
+				if (mutations.size() == batchSize) {
+					writer.addMutations(mutations);
+					mutations = new ArrayList<Mutation>();
+				}
+			}
+
+			if (!mutations.isEmpty()) {
+				writer.addMutations(mutations);
+			}
+
+			commit();
+
+		} catch (AccumuloException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Deletes the keys blind, handing the writer one
+	 * list of mutations per chunk of batchSize.
+	 */
+	@Override
+	public void removeAll(Collection<?> keys) {
+		try {
+			List<Mutation> mutations = new ArrayList<Mutation>();
+			for (Object key : keys) {
+				Text row = toRowId(key);
+				if (mutations.isEmpty()) {
+					markSizeStale(row);
+				}
+
+				Mutation mutation = new Mutation(row);
+				mutation.putDelete(EMPTY, EMPTY);
+				mutations.add(mutation);
+
+				if (mutations.size() == batchSize) {
+					writer.addMutations(mutations);
+					mutations = new ArrayList<Mutation>();
+				}
+			}
+
+			if (!mutations.isEmpty()) {
+				writer.addMutations(mutations);
+			}
+
+			commit();
+
+		} catch (AccumuloException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public int getQueryThreads() {
+		return queryThreads;
+	}
+
+	public void setQueryThreads(int queryThreads) {
+		this.queryThreads = queryThreads;
+	}
+
+	public int getScanThreads() {
+		return scanThreads;
+	}
+
+	public void setScanThreads(int scanThreads) {
+		this.scanThreads = scanThreads;
+	}
+
+	/**
+	 * Walks the whole table with one Scanner per tablet, up to
+	 * scanThreads at a time, handing each entry to the visitor on
+	 * the thread that read it.  Entries come in key order within
+	 * a tablet, but in no order overall.  The first exception from
+	 * a scan or from the visitor stops the rest and is rethrown.
+	 */
+	public void scan(Visitor<? super K, ? super V> visitor) {
+		scan(null, visitor);
+	}
+
+	/**
+	 * Like {@link #scan(Visitor)}, but visits only the entries the
+	 * predicate accepts.  The predicate runs in a {@link PickleFilter}
+	 * on the tablet servers, so the other entries are never sent.
+	 * It runs again here on what comes back, for any entries the
+	 * filter passed on because it couldn't unpickle them.
+	 */
+	public void scan(final Predicate<? super K, ? super V> predicate, final Visitor<? super K, ? super V> visitor) {
+		sync();
+
+		final IteratorSetting filter = predicate != null ? predicateFilter(predicate) : null;
+
+		List<Range> ranges = tabletRanges();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(scanThreads, ranges.size()));
+
+		try {
+			// Taken as they finish, so the first failure stops the rest straight away.
+			CompletionService<Void> scans = new ExecutorCompletionService<Void>(executor);
+			for (final Range range : ranges) {
+				scans.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						scanRange(range, filter, predicate, visitor);
+						return null;
+					}
+				});
+			}
+
+			for (int i = 0; i < ranges.size(); i++) {
+				scans.take().get();
+			}
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	protected IteratorSetting predicateFilter(Predicate<?, ?> predicate) {
+		// Send the filter every class registered so far, by any client.
+		reloadRegistry();
+
+		IteratorSetting filter = new IteratorSetting(FILTER_PRIORITY, "predicate", PickleFilter.class);
+		PickleFilter.setPredicate(filter, predicate, registry);
+		return filter;
+	}
+
+	/**
+	 * Returns a Range for each tablet, from the table's splits.
+	 */
+	protected List<Range> tabletRanges() {
+		try {
+			List<Range> ranges = new ArrayList<Range>();
+
+			Text start = null;
+			for (Text split : conn.tableOperations().getSplits(table)) {
+				ranges.add(new Range(start, false, split, true));
+				start = split;
+			}
+			ranges.add(new Range(start, false, null, true));
+
+			return ranges;
+
+		} catch (TableNotFoundException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	protected void scanRange(Range range, IteratorSetting filter,
+			Predicate<? super K, ? super V> predicate,
+			Visitor<? super K, ? super V> visitor) throws TableNotFoundException {
+		Scanner rangeScanner = conn.createScanner(table, Constants.NO_AUTHS);
+		rangeScanner.setRange(range);
+		if (filter != null) {
+			rangeScanner.addScanIterator(filter);
+		}
+
+		for (Map.Entry<Key, Value> entry : rangeScanner) {
+			// Another range failed and the scan is being stopped.
+			if (Thread.currentThread().isInterrupted()) {
+				return;
+			}
+
+			ByteSequence row = entry.getKey().getRowData();
+			if (!isMetaRow(row)) {
+				K key = fromRowId(row);
+				V value = unpickle(entry.getValue().get());
+
+				if (predicate == null || predicate.accept(key, value)) {
+					visitor.visit(key, value);
+				}
+			}
+		}
+	}
+
 	@Override
 	public V remove(Object key) {
 		try {
 			V old = get(key);
 
 			if (old != null) {
-				deleteKey(key);
-				decrementCount();
+				Text row = toRowId(key);
+				deleteRow(row);
+				decrementCount(row);
+				commit();
 			}
 
 			return old;
@@ -164,22 +820,46 @@ public class AccumuloMap<K, V> extends AbstractMap<K, V> implements PickleMap<K,
 	}
 
 
+	protected Scanner newScanner(Range range, boolean keysOnly) {
+		try {
+			Scanner rangeScanner = conn.createScanner(table, Constants.NO_AUTHS);
+			rangeScanner.setRange(range);
+
+			if (keysOnly) {
+				rangeScanner.addScanIterator(new IteratorSetting(KEYS_ONLY_PRIORITY, "keysOnly", SortedKeyIterator.class));
+			}
+
+			return rangeScanner;
+
+		} catch (TableNotFoundException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	protected Map.Entry<Key, Value> firstEntry(Scanner scanner) {
 		Iterator<Map.Entry<Key, Value>> i = scanner.iterator();
 		return i.hasNext() ? i.next() : null;
 	}
 
-	protected static Text toRowId(Object key) {
-		return new Text(Pickler.pickle(key));
+	protected Text toRowId(Object key) {
+		return new Text(Pickler.pickle(key, registry));
 	}
 
-	protected static Value toValue(Object value) {
-		return new Value(Pickler.pickle(value));
+	protected K fromRowId(ByteSequence row) {
+		return unpickle(row.getBackingArray(), row.offset(), row.length());
+	}
+
+	protected Value toValue(Object value) {
+		return new Value(Pickler.pickle(value, registry));
 	}
 
 	protected void deleteKey(Object key) {
+		deleteRow(toRowId(key));
+	}
+
+	protected void deleteRow(Text row) {
 		try {
-			Mutation m = new Mutation(toRowId(key));
+			Mutation m = new Mutation(row);
 			m.putDelete(EMPTY, EMPTY);
 			writer.addMutation(m);
 
@@ -188,8 +868,8 @@ public class AccumuloMap<K, V> extends AbstractMap<K, V> implements PickleMap<K,
 		}
 	}
 
-	protected void updateCount(long incr, boolean delete) throws AccumuloException {
-		Mutation m = new Mutation(METAROW);
+	protected void updateCount(Text countRow, long incr, boolean delete) throws AccumuloException {
+		Mutation m = new Mutation(countRow);
 
 		if (delete) {
 			m.putDelete(COUNTCF, EMPTY);
@@ -200,16 +880,116 @@ public class AccumuloMap<K, V> extends AbstractMap<K, V> implements PickleMap<K,
 		writer.addMutation(m);
 	}
 
-	protected void incrementCount() throws AccumuloException {
-		updateCount(+1, false);
+	/**
+	 * Returns the counter row for a data row.
+	 */
+	protected Text counterRow(Text row) {
+		return counterRows[(row.hashCode() & Integer.MAX_VALUE) % counterRows.length];
+	}
+
+	protected void incrementCount(Text row) throws AccumuloException {
+		updateCount(counterRow(row), +1, false);
 	}
 
-	protected void decrementCount() throws AccumuloException {
-		updateCount(-1, false);
+	protected void decrementCount(Text row) throws AccumuloException {
+		updateCount(counterRow(row), -1, false);
 	}
 
+	/**
+	 * Starts the count of a new table at zero.  The table is new, so
+	 * there's nothing to delete, and a delete would hide the counts
+	 * written in the same millisecond, which share its timestamp.
+	 */
 	protected void resetCount() throws AccumuloException {
-		updateCount(0, true);
+		updateCount(METAROW, 0, false);
+	}
+
+	/**
+	 * Sums the counter rows, in the same scan as the stale
+	 * markers, and recounts if there are any.
+	 */
+	protected long getCount() {
+		sync();
+
+		long count = 0;
+		Map<Text, Long> stale = new HashMap<Text, Long>();
+		for (Map.Entry<Key, Value> entry : columnScanner(Range.prefix(METAROW), COUNTCF, STALECF)) {
+			Key key = entry.getKey();
+			if (key.getColumnFamily().equals(COUNTCF)) {
+				count += Long.parseLong(new String(entry.getValue().get()));
+			}
+			else {
+				stale.put(key.getRow(), key.getTimestamp());
+			}
+		}
+
+		return stale.isEmpty() ? count : recount(stale);
+	}
+
+	/**
+	 * Marks the count as needing a recount, since blind writes
+	 * can't tell whether they add a row.  The mark goes in the
+	 * row's counter row, so blind writes are spread like counts,
+	 * and every blind write makes its own, since another client
+	 * may have recounted since the last one.
+	 */
+	protected void markSizeStale(Text row) throws AccumuloException {
+		Mutation m = new Mutation(counterRow(row));
+		m.put(STALECF, EMPTY, new Value("1".getBytes()));
+		writer.addMutation(m);
+	}
+
+	/**
+	 * Counts the data rows after blind writes (from any client) and
+	 * corrects the stored count.  The stored count is read after the
+	 * rows, and corrected by the difference, so counting writes made
+	 * meanwhile still add up.  Only the marks this recount saw are
+	 * deleted, by timestamp, so blind writes made since stay marked.
+	 */
+	protected long recount(Map<Text, Long> stale) {
+		try {
+			long count = 0;
+
+			for (Map.Entry<Key, Value> entry : newScanner(new Range(), true)) {
+				if (!isMetaRow(entry.getKey().getRowData())) {
+					count++;
+				}
+			}
+
+			long stored = 0;
+			for (Map.Entry<Key, Value> entry : columnScanner(Range.prefix(METAROW), COUNTCF)) {
+				stored += Long.parseLong(new String(entry.getValue().get()));
+			}
+
+			// The combiner sums counts, so write the difference.
+			updateCount(METAROW, count - stored, false);
+
+			for (Map.Entry<Text, Long> mark : stale.entrySet()) {
+				Mutation m = new Mutation(mark.getKey());
+				m.putDelete(STALECF, EMPTY, mark.getValue());
+				writer.addMutation(m);
+			}
+			writer.flush();
+
+			return count;
+
+		} catch (AccumuloException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	protected Scanner columnScanner(Range range, Text... columnFamilies) {
+		try {
+			Scanner countScanner = conn.createScanner(table, Constants.NO_AUTHS);
+			countScanner.setRange(range);
+			for (Text columnFamily : columnFamilies) {
+				countScanner.fetchColumnFamily(columnFamily);
+			}
+			return countScanner;
+
+		} catch (TableNotFoundException e) {
+			throw new RuntimeException(e);
+		}
 	}
 
 
@@ -222,20 +1002,18 @@ public class AccumuloMap<K, V> extends AbstractMap<K, V> implements PickleMap<K,
 
 		@Override
 		public int size() {
-			scanner.setRange(new Range(METAROW));
-			scanner.fetchColumnFamily(COUNTCF);
-			Map.Entry<Key, Value> entry = firstEntry(scanner);
-			scanner.clearColumns();
-
-			return (int) Long.parseLong(new String(entry.getValue().get()));
+			return (int) getCount();
 		}
 
 		@Override
 		public void clear() {
 			try {
+				writer.close();
 				recreateTable();
-				initScannerAndWriter();
+				initWriter();
 				resetCount();
+				loadRegistry(true);
+				checkKeyOrder();
 
 			} catch (AccumuloException e) {
 				throw new RuntimeException(e);
@@ -250,58 +1028,146 @@ public class AccumuloMap<K, V> extends AbstractMap<K, V> implements PickleMap<K,
 
 	}
 
+	/**
+	 * Scans with a server-side iterator that drops the
+	 * values, so they're never sent or unpickled.
+	 */
+	protected class KeySet extends AbstractSet<K> {
+
+		@Override
+		public Iterator<K> iterator() {
+			final EntryIterator entries = new EntryIterator(true);
+
+			return new Iterator<K>() {
+				@Override
+				public boolean hasNext() {
+					return entries.hasNext();
+				}
+
+				@Override
+				public K next() {
+					return entries.next().getKey();
+				}
+
+				@Override
+				public void remove() {
+					entries.remove();
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return (int) getCount();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return containsKey(o);
+		}
+
+	}
+
 	protected class EntryIterator implements Iterator<Map.Entry<K, V>> {
 
 		protected Iterator<Map.Entry<Key, Value>> entries;
+		protected Map.Entry<Key, Value> nextEntry;
 		protected Map.Entry<K, V> curEntry;
 
 		public EntryIterator() {
-			scanner.setRange(new Range());
-			entries = scanner.iterator();
+			this(false);
+		}
+
+		public EntryIterator(boolean keysOnly) {
+			this(new Range(), keysOnly);
+		}
+
+		public EntryIterator(Range range, boolean keysOnly) {
+			sync();
+			entries = newScanner(range, keysOnly).iterator();
+			advance();
+		}
+
+		/**
+		 * Moves to the next data entry, skipping the metadata rows.
+		 */
+		protected void advance() {
+			nextEntry = null;
+			while (nextEntry == null && entries.hasNext()) {
+				Map.Entry<Key, Value> entry = entries.next();
+				if (!isMetaRow(entry.getKey().getRowData())) {
+					nextEntry = entry;
+				}
+			}
 		}
 
 		@Override
 		public boolean hasNext() {
-			return entries.hasNext();
+			return nextEntry != null;
 		}
 
 		@Override
 		public Map.Entry<K, V> next() {
-			curEntry = new EntryWrapper(entries.next());
+			if (nextEntry == null) {
+				throw new NoSuchElementException();
+			}
+
+			curEntry = new EntryWrapper(nextEntry);
+			advance();
 			return curEntry;
 		}
 
 		@Override
 		public void remove() {
 			deleteKey(curEntry.getKey());
+
+			try {
+				commit();
+			} catch (MutationsRejectedException e) {
+				throw new RuntimeException(e);
+			}
 		}
 
 	}
 
+	/**
+	 * Unpickles the key and value only when first asked for.
+	 */
 	protected class EntryWrapper implements Map.Entry<K, V> {
 
+		protected Map.Entry<Key, Value> entry;
+		protected boolean keyLoaded;
+		protected boolean valueLoaded;
 		protected K key;
 		protected V value;
 
 		public EntryWrapper(Map.Entry<Key, Value> entry) {
-			this.key = Pickler.unpickle(entry.getKey().getRow().getBytes());
-			this.value = Pickler.unpickle(entry.getValue().get());
+			this.entry = entry;
 		}
 
 		@Override
 		public K getKey() {
+			if (!keyLoaded) {
+				key = fromRowId(entry.getKey().getRowData());
+				keyLoaded = true;
+			}
 			return key;
 		}
 
 		@Override
 		public V getValue() {
+			if (!valueLoaded) {
+				value = AccumuloMap.this.<V>unpickle(entry.getValue().get());
+				valueLoaded = true;
+			}
 			return value;
 		}
 
 		@Override
 		public V setValue(V value) {
-			V old = put(key, value);
+			V old = put(getKey(), value);
 			this.value = value;
+			this.valueLoaded = true;
 			return old;
 		}
 
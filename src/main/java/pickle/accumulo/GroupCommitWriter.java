@@ -0,0 +1,233 @@
+package pickle.accumulo;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.MutationsRejectedException;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Wraps a BatchWriter so that concurrent callers share flushes
+ * instead of each waiting for their own round trip.
+ *
+ * Adding a mutation doesn't wait.  A background thread flushes
+ * once the mutations added since the last flush reach flushBytes,
+ * or once the oldest of them is maxLatency milliseconds old.
+ * {@link #flush()} waits until everything added before it is
+ * flushed, starting a flush straight away if none is running;
+ * callers that add while a flush runs are all flushed together
+ * by the next one.  {@link #flush(Text)} waits only if the row
+ * has mutations that aren't flushed yet.
+ *
+ * @author Michael Lieberman
+ */
+public class GroupCommitWriter implements BatchWriter {
+
+	protected final BatchWriter writer;
+	protected final long maxLatency;
+	protected final long flushBytes;
+	protected final Thread flusher;
+
+	// Guarded by this.
+	protected long added;
+	protected long flushed;
+	protected long pendingBytes;
+	protected long pendingSince;
+	protected boolean urgent;
+	protected boolean closed;
+	protected MutationsRejectedException error;
+	/** Rows with unflushed mutations, oldest first, by how many were added with the last. */
+	protected LinkedHashMap<Text, Long> pendingRows = new LinkedHashMap<Text, Long>();
+
+	public GroupCommitWriter(BatchWriter writer, long maxLatency, long flushBytes) {
+		this.writer = writer;
+		this.maxLatency = maxLatency;
+		this.flushBytes = flushBytes;
+
+		flusher = new Thread("GroupCommitWriter flusher") {
+			@Override
+			public void run() {
+				flushLoop();
+			}
+		};
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	@Override
+	public void addMutation(Mutation m) throws MutationsRejectedException {
+		checkError();
+		writer.addMutation(m);
+		added(m, m.numBytes());
+	}
+
+	@Override
+	public void addMutations(Iterable<Mutation> iterable) throws MutationsRejectedException {
+		checkError();
+
+		for (Mutation m : iterable) {
+			writer.addMutation(m);
+			added(m, m.numBytes());
+		}
+	}
+
+	/**
+	 * Waits until every mutation added so far, by any
+	 * caller, has been flushed.
+	 */
+	@Override
+	public synchronized void flush() throws MutationsRejectedException {
+		flush(added);
+	}
+
+	/**
+	 * Waits until every mutation added so far to the row
+	 * has been flushed, which is straight away if there
+	 * are none waiting.
+	 */
+	public synchronized void flush(Text row) throws MutationsRejectedException {
+		Long target = pendingRows.get(row);
+		if (target != null) {
+			flush(target);
+		}
+		else {
+			checkError();
+		}
+	}
+
+	protected synchronized void flush(long target) throws MutationsRejectedException {
+		if (flushed < target) {
+			urgent = true;
+			notifyAll();
+		}
+
+		try {
+			while (flushed < target && error == null) {
+				wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+
+		checkError();
+	}
+
+	/**
+	 * Flushes everything, stops the flusher
+	 * and closes the underlying writer.
+	 */
+	@Override
+	public void close() throws MutationsRejectedException {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+
+		checkError();
+		writer.close();
+	}
+
+	protected synchronized void checkError() throws MutationsRejectedException {
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	protected synchronized void added(Mutation m, long bytes) {
+		// The flusher waits without a timeout while there's nothing
+		// pending, so it's woken to start timing the first mutation.
+		boolean first = added == flushed;
+		if (first) {
+			pendingSince = System.currentTimeMillis();
+		}
+
+		added++;
+		pendingBytes += bytes;
+
+		// Moved to the end, to keep them in order.
+		Text row = new Text(m.getRow());
+		pendingRows.remove(row);
+		pendingRows.put(row, added);
+
+		if (first || pendingBytes >= flushBytes) {
+			notifyAll();
+		}
+	}
+
+	protected void flushLoop() {
+		while (true) {
+			long target = nextBatch();
+			if (target < 0) {
+				return;
+			}
+
+			MutationsRejectedException rejected = null;
+			try {
+				writer.flush();
+			} catch (MutationsRejectedException e) {
+				rejected = e;
+			}
+
+			flushed(target, rejected);
+		}
+	}
+
+	/**
+	 * Waits until the pending mutations are due to be flushed,
+	 * and returns how many will have been added once they are,
+	 * or -1 once closed with nothing pending.
+	 */
+	protected synchronized long nextBatch() {
+		try {
+			while (true) {
+				if (error != null || added == flushed) {
+					if (closed || error != null) {
+						return -1;
+					}
+					wait();
+					continue;
+				}
+
+				long due = pendingSince + maxLatency - System.currentTimeMillis();
+				if (urgent || closed || pendingBytes >= flushBytes || due <= 0) {
+					break;
+				}
+				wait(due);
+			}
+		} catch (InterruptedException e) {
+			return -1;
+		}
+
+		urgent = false;
+		pendingBytes = 0;
+		return added;
+	}
+
+	protected synchronized void flushed(long target, MutationsRejectedException rejected) {
+		flushed = target;
+		error = rejected;
+
+		Iterator<Long> rows = pendingRows.values().iterator();
+		while (rows.hasNext() && rows.next() <= flushed) {
+			rows.remove();
+		}
+
+		// Whatever was added during the flush waits from now.
+		if (added > flushed) {
+			pendingSince = System.currentTimeMillis();
+		}
+
+		notifyAll();
+	}
+
+}
@@ -0,0 +1,1037 @@
+package pickle.accumulo;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+
+import org.apache.accumulo.core.Constants;
+import org.apache.accumulo.core.client.AccumuloException;
+import org.apache.accumulo.core.client.BatchScanner;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.data.ByteSequence;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.hadoop.io.Text;
+
+import pickle.Bytes;
+import pickle.NavigablePickleMap;
+import pickle.OrderedCodec;
+
+/**
+ * An AccumuloMap whose row IDs are encoded with {@link OrderedCodec},
+ * so the table is sorted in key order and range queries are scans
+ * of a bounded Range, touching only the tablets it covers.  Keys are
+ * limited to the types OrderedCodec supports, and ordered by its
+ * {@link OrderedCodec#COMPARATOR}.
+ *
+ * Accumulo can't scan backwards, so the last entry in a range is
+ * found by scanning the keys of the range's last tablet, then the one
+ * before if that's empty, and so on, and descending iterators read a
+ * tablet's worth of the range at a time.
+ *
+ * Tables written by a plain AccumuloMap can't be opened
+ * with this class, and vice versa.
+ *
+ * @author Michael Lieberman
+ */
+public class NavigableAccumuloMap<K, V> extends AccumuloMap<K, V> implements NavigablePickleMap<K, V> {
+
+	/** Entries fetched per round trip when only the first is wanted. */
+	protected static final int PROBE_BATCH_SIZE = 10;
+
+	protected View root;
+
+	public NavigableAccumuloMap(Connector conn, String table) throws AccumuloException {
+		this(conn, table, true);
+	}
+
+	public NavigableAccumuloMap(Connector conn, String table, boolean autoflush) throws AccumuloException {
+		this(conn, table, autoflush, false);
+	}
+
+	public NavigableAccumuloMap(Connector conn, String table,
+			boolean autoflush, boolean create) throws AccumuloException {
+		this(conn, table, autoflush, create, new AccumuloConfig());
+	}
+
+	public NavigableAccumuloMap(Connector conn, String table,
+			boolean autoflush, boolean create, AccumuloConfig config) throws AccumuloException {
+		super(conn, table, autoflush, create, config);
+		this.root = new View(null, null, false);
+	}
+
+	@Override
+	protected boolean orderedKeys() {
+		return true;
+	}
+
+	protected byte[] encodeKey(Object key) {
+		return OrderedCodec.encode(key);
+	}
+
+	@Override
+	protected Text toRowId(Object key) {
+		return new Text(encodeKey(key));
+	}
+
+	@Override
+	protected K fromRowId(ByteSequence row) {
+		return OrderedCodec.decode(row.getBackingArray(), row.offset(), row.length());
+	}
+
+	@Override
+	protected IteratorSetting predicateFilter(Predicate<?, ?> predicate) {
+		IteratorSetting filter = super.predicateFilter(predicate);
+		PickleFilter.setOrderedKeys(filter);
+		return filter;
+	}
+
+	@Override
+	public Comparator<? super K> comparator() {
+		return root.comparator();
+	}
+
+	@Override
+	public K firstKey() {
+		return root.firstKey();
+	}
+
+	@Override
+	public K lastKey() {
+		return root.lastKey();
+	}
+
+	@Override
+	public Map.Entry<K, V> firstEntry() {
+		return root.firstEntry();
+	}
+
+	@Override
+	public Map.Entry<K, V> lastEntry() {
+		return root.lastEntry();
+	}
+
+	@Override
+	public Map.Entry<K, V> pollFirstEntry() {
+		return root.pollFirstEntry();
+	}
+
+	@Override
+	public Map.Entry<K, V> pollLastEntry() {
+		return root.pollLastEntry();
+	}
+
+	@Override
+	public Map.Entry<K, V> lowerEntry(K key) {
+		return root.lowerEntry(key);
+	}
+
+	@Override
+	public K lowerKey(K key) {
+		return root.lowerKey(key);
+	}
+
+	@Override
+	public Map.Entry<K, V> floorEntry(K key) {
+		return root.floorEntry(key);
+	}
+
+	@Override
+	public K floorKey(K key) {
+		return root.floorKey(key);
+	}
+
+	@Override
+	public Map.Entry<K, V> ceilingEntry(K key) {
+		return root.ceilingEntry(key);
+	}
+
+	@Override
+	public K ceilingKey(K key) {
+		return root.ceilingKey(key);
+	}
+
+	@Override
+	public Map.Entry<K, V> higherEntry(K key) {
+		return root.higherEntry(key);
+	}
+
+	@Override
+	public K higherKey(K key) {
+		return root.higherKey(key);
+	}
+
+	@Override
+	public NavigableMap<K, V> descendingMap() {
+		return root.descendingMap();
+	}
+
+	@Override
+	public NavigableSet<K> navigableKeySet() {
+		return root.navigableKeySet();
+	}
+
+	@Override
+	public NavigableSet<K> descendingKeySet() {
+		return root.descendingKeySet();
+	}
+
+	@Override
+	public Set<K> keySet() {
+		return root.navigableKeySet();
+	}
+
+	@Override
+	public NavigableMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+		return root.subMap(fromKey, fromInclusive, toKey, toInclusive);
+	}
+
+	@Override
+	public NavigableMap<K, V> headMap(K toKey, boolean inclusive) {
+		return root.headMap(toKey, inclusive);
+	}
+
+	@Override
+	public NavigableMap<K, V> tailMap(K fromKey, boolean inclusive) {
+		return root.tailMap(fromKey, inclusive);
+	}
+
+	@Override
+	public SortedMap<K, V> subMap(K fromKey, K toKey) {
+		return root.subMap(fromKey, toKey);
+	}
+
+	@Override
+	public SortedMap<K, V> headMap(K toKey) {
+		return root.headMap(toKey);
+	}
+
+	@Override
+	public SortedMap<K, V> tailMap(K fromKey) {
+		return root.tailMap(fromKey);
+	}
+
+
+	/**
+	 * The Range between two bounds, or null if
+	 * there's nothing between them.
+	 */
+	protected static Range range(Bound lo, Bound hi) {
+		if (lo != null && hi != null) {
+			int cmp = Bytes.compare(lo.bytes, hi.bytes);
+			if (cmp > 0 || (cmp == 0 && !(lo.inclusive && hi.inclusive))) {
+				return null;
+			}
+		}
+
+		return new Range(lo != null ? new Text(lo.bytes) : null, lo == null || lo.inclusive,
+				hi != null ? new Text(hi.bytes) : null, hi == null || hi.inclusive);
+	}
+
+	/**
+	 * The parts of a range in each tablet, in key order.
+	 */
+	protected List<Range> tabletRanges(Range range) {
+		List<Range> ranges = new ArrayList<Range>();
+
+		for (Range tablet : tabletRanges()) {
+			Range clipped = range.clip(tablet, true);
+			if (clipped != null) {
+				ranges.add(clipped);
+			}
+		}
+
+		return ranges;
+	}
+
+	protected Map.Entry<K, V> lowest(Bound lo, Bound hi) {
+		Range range = range(lo, hi);
+		if (range == null) {
+			return null;
+		}
+
+		sync();
+
+		Scanner probe = newScanner(range, false);
+		probe.setBatchSize(PROBE_BATCH_SIZE);
+
+		for (Map.Entry<Key, Value> entry : probe) {
+			if (!isMetaRow(entry.getKey().getRowData())) {
+				return new EntryWrapper(entry);
+			}
+		}
+
+		return null;
+	}
+
+	protected Map.Entry<K, V> highest(Bound lo, Bound hi) {
+		Range range = range(lo, hi);
+		if (range == null) {
+			return null;
+		}
+
+		sync();
+
+		List<Range> tablets = tabletRanges(range);
+		for (int i = tablets.size() - 1; i >= 0; i--) {
+			Text last = null;
+			for (Map.Entry<Key, Value> entry : newScanner(tablets.get(i), true)) {
+				if (!isMetaRow(entry.getKey().getRowData())) {
+					last = entry.getKey().getRow();
+				}
+			}
+
+			if (last != null) {
+				Map.Entry<Key, Value> entry = firstEntry(newScanner(new Range(last), false));
+				return entry != null ? new EntryWrapper(entry) : null;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Deletes the rows of a range as a keys-only scan finds them,
+	 * handing the writer batchSize at a time along with what each
+	 * batch takes off each counter row, so the count stays exact.
+	 */
+	protected void deleteRows(Range range) {
+		sync();
+
+		try {
+			List<Mutation> mutations = new ArrayList<Mutation>();
+			Map<Text, Long> decrements = new HashMap<Text, Long>();
+
+			for (Map.Entry<Key, Value> entry : newScanner(range, true)) {
+				if (isMetaRow(entry.getKey().getRowData())) {
+					continue;
+				}
+
+				Text row = entry.getKey().getRow();
+				Mutation m = new Mutation(row);
+				m.putDelete(EMPTY, EMPTY);
+				mutations.add(m);
+
+				Text countRow = counterRow(row);
+				Long decrement = decrements.get(countRow);
+				decrements.put(countRow, decrement != null ? decrement - 1 : -1L);
+
+				if (mutations.size() == batchSize) {
+					deleteBatch(mutations, decrements);
+				}
+			}
+
+			if (!mutations.isEmpty()) {
+				deleteBatch(mutations, decrements);
+			}
+
+			commit();
+
+		} catch (AccumuloException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	protected void deleteBatch(List<Mutation> mutations, Map<Text, Long> decrements) throws AccumuloException {
+		writer.addMutations(mutations);
+		for (Map.Entry<Text, Long> decrement : decrements.entrySet()) {
+			updateCount(decrement.getKey(), decrement.getValue(), false);
+		}
+
+		mutations.clear();
+		decrements.clear();
+	}
+
+	protected static boolean aboveLo(byte[] key, Bound lo) {
+		if (lo == null) {
+			return true;
+		}
+
+		int cmp = Bytes.compare(key, lo.bytes);
+		return cmp > 0 || (cmp == 0 && lo.inclusive);
+	}
+
+	protected static boolean belowHi(byte[] key, Bound hi) {
+		if (hi == null) {
+			return true;
+		}
+
+		int cmp = Bytes.compare(key, hi.bytes);
+		return cmp < 0 || (cmp == 0 && hi.inclusive);
+	}
+
+	protected static <T> T key(Map.Entry<T, ?> entry) {
+		return entry != null ? entry.getKey() : null;
+	}
+
+
+	/**
+	 * An encoded range endpoint.
+	 */
+	protected static class Bound {
+
+		protected final byte[] bytes;
+		protected final boolean inclusive;
+
+		public Bound(byte[] bytes, boolean inclusive) {
+			this.bytes = bytes;
+			this.inclusive = inclusive;
+		}
+
+	}
+
+
+	/**
+	 * The entries between lo and hi (null for unbounded), in key
+	 * order or reversed.  Bounds are always in key order, so a
+	 * descending view's lo is its last key.
+	 */
+	protected class View extends AbstractMap<K, V> implements NavigableMap<K, V> {
+
+		protected final Bound lo;
+		protected final Bound hi;
+		protected final boolean descending;
+
+		public View(Bound lo, Bound hi, boolean descending) {
+			this.lo = lo;
+			this.hi = hi;
+			this.descending = descending;
+		}
+
+		protected Bound bound(Object key, boolean inclusive) {
+			return new Bound(encodeKey(key), inclusive);
+		}
+
+		protected boolean inRange(byte[] key) {
+			return aboveLo(key, lo) && belowHi(key, hi);
+		}
+
+		/** The tighter of the view's lower bound and b. */
+		protected Bound maxLo(Bound b) {
+			if (lo == null) {
+				return b;
+			}
+
+			int cmp = Bytes.compare(b.bytes, lo.bytes);
+			return cmp > 0 || (cmp == 0 && !b.inclusive) ? b : lo;
+		}
+
+		/** The tighter of the view's upper bound and b. */
+		protected Bound minHi(Bound b) {
+			if (hi == null) {
+				return b;
+			}
+
+			int cmp = Bytes.compare(b.bytes, hi.bytes);
+			return cmp < 0 || (cmp == 0 && !b.inclusive) ? b : hi;
+		}
+
+		/** Entry at or after key, in key order. */
+		protected Map.Entry<K, V> ceiling(K key, boolean inclusive) {
+			return lowest(maxLo(bound(key, inclusive)), hi);
+		}
+
+		/** Entry at or before key, in key order. */
+		protected Map.Entry<K, V> floor(K key, boolean inclusive) {
+			return highest(lo, minHi(bound(key, inclusive)));
+		}
+
+		/**
+		 * Entries in the view's order.  Keys-only entries
+		 * have no values, and are for walking keys.
+		 */
+		protected Iterator<Map.Entry<K, V>> entryIterator(boolean keysOnly) {
+			return descending ? new DescendingIterator(lo, hi, keysOnly) : new AscendingIterator(lo, hi, keysOnly);
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return get(key) != null;
+		}
+
+		@Override
+		public V get(Object key) {
+			return inRange(encodeKey(key)) ? NavigableAccumuloMap.this.get(key) : null;
+		}
+
+		@Override
+		public V put(K key, V value) {
+			if (!inRange(encodeKey(key))) {
+				throw new IllegalArgumentException("Key out of range");
+			}
+
+			return NavigableAccumuloMap.this.put(key, value);
+		}
+
+		@Override
+		public V remove(Object key) {
+			return inRange(encodeKey(key)) ? NavigableAccumuloMap.this.remove(key) : null;
+		}
+
+		@Override
+		public int size() {
+			if (lo == null && hi == null) {
+				return NavigableAccumuloMap.this.size();
+			}
+
+			int count = 0;
+			for (Iterator<Map.Entry<K, V>> i = new AscendingIterator(lo, hi, true); i.hasNext(); i.next()) {
+				count++;
+			}
+			return count;
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return lowest(lo, hi) == null;
+		}
+
+		@Override
+		public void clear() {
+			if (lo == null && hi == null) {
+				NavigableAccumuloMap.this.clear();
+				return;
+			}
+
+			Range range = range(lo, hi);
+			if (range != null) {
+				deleteRows(range);
+			}
+		}
+
+		@Override
+		public Set<Map.Entry<K, V>> entrySet() {
+			return new AbstractSet<Map.Entry<K, V>>() {
+				@Override
+				public Iterator<Map.Entry<K, V>> iterator() {
+					return entryIterator(false);
+				}
+
+				@Override
+				public int size() {
+					return View.this.size();
+				}
+			};
+		}
+
+		@Override
+		public Comparator<? super K> comparator() {
+			return descending ? Collections.reverseOrder(OrderedCodec.COMPARATOR) : OrderedCodec.COMPARATOR;
+		}
+
+		@Override
+		public Map.Entry<K, V> firstEntry() {
+			return descending ? highest(lo, hi) : lowest(lo, hi);
+		}
+
+		@Override
+		public Map.Entry<K, V> lastEntry() {
+			return descending ? lowest(lo, hi) : highest(lo, hi);
+		}
+
+		@Override
+		public K firstKey() {
+			return existing(firstEntry());
+		}
+
+		@Override
+		public K lastKey() {
+			return existing(lastEntry());
+		}
+
+		protected K existing(Map.Entry<K, V> entry) {
+			if (entry == null) {
+				throw new NoSuchElementException();
+			}
+			return entry.getKey();
+		}
+
+		@Override
+		public Map.Entry<K, V> pollFirstEntry() {
+			return poll(firstEntry());
+		}
+
+		@Override
+		public Map.Entry<K, V> pollLastEntry() {
+			return poll(lastEntry());
+		}
+
+		protected Map.Entry<K, V> poll(Map.Entry<K, V> entry) {
+			if (entry != null) {
+				NavigableAccumuloMap.this.remove(entry.getKey());
+			}
+			return entry;
+		}
+
+		@Override
+		public Map.Entry<K, V> lowerEntry(K key) {
+			return descending ? ceiling(key, false) : floor(key, false);
+		}
+
+		@Override
+		public K lowerKey(K key) {
+			return key(lowerEntry(key));
+		}
+
+		@Override
+		public Map.Entry<K, V> floorEntry(K key) {
+			return descending ? ceiling(key, true) : floor(key, true);
+		}
+
+		@Override
+		public K floorKey(K key) {
+			return key(floorEntry(key));
+		}
+
+		@Override
+		public Map.Entry<K, V> ceilingEntry(K key) {
+			return descending ? floor(key, true) : ceiling(key, true);
+		}
+
+		@Override
+		public K ceilingKey(K key) {
+			return key(ceilingEntry(key));
+		}
+
+		@Override
+		public Map.Entry<K, V> higherEntry(K key) {
+			return descending ? floor(key, false) : ceiling(key, false);
+		}
+
+		@Override
+		public K higherKey(K key) {
+			return key(higherEntry(key));
+		}
+
+		@Override
+		public View descendingMap() {
+			return new View(lo, hi, !descending);
+		}
+
+		@Override
+		public NavigableSet<K> navigableKeySet() {
+			return new NavigableKeySet(this);
+		}
+
+		@Override
+		public NavigableSet<K> descendingKeySet() {
+			return descendingMap().navigableKeySet();
+		}
+
+		@Override
+		public Set<K> keySet() {
+			return navigableKeySet();
+		}
+
+		@Override
+		public View subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+			Bound from = bound(fromKey, fromInclusive);
+			Bound to = bound(toKey, toInclusive);
+
+			if (descending ? Bytes.compare(from.bytes, to.bytes) < 0 : Bytes.compare(from.bytes, to.bytes) > 0) {
+				throw new IllegalArgumentException("fromKey > toKey");
+			}
+
+			return descending ? restrict(to, from) : restrict(from, to);
+		}
+
+		@Override
+		public View headMap(K toKey, boolean inclusive) {
+			Bound to = bound(toKey, inclusive);
+			return descending ? restrict(to, hi) : restrict(lo, to);
+		}
+
+		@Override
+		public View tailMap(K fromKey, boolean inclusive) {
+			Bound from = bound(fromKey, inclusive);
+			return descending ? restrict(lo, from) : restrict(from, hi);
+		}
+
+		@Override
+		public SortedMap<K, V> subMap(K fromKey, K toKey) {
+			return subMap(fromKey, true, toKey, false);
+		}
+
+		@Override
+		public SortedMap<K, V> headMap(K toKey) {
+			return headMap(toKey, false);
+		}
+
+		@Override
+		public SortedMap<K, V> tailMap(K fromKey) {
+			return tailMap(fromKey, true);
+		}
+
+		/**
+		 * A view of this one's entries between newLo and
+		 * newHi, which must lie within this view's range.
+		 */
+		protected View restrict(Bound newLo, Bound newHi) {
+			if (newLo != lo && !withinRange(newLo)) {
+				throw new IllegalArgumentException("Key out of range");
+			}
+			if (newHi != hi && !withinRange(newHi)) {
+				throw new IllegalArgumentException("Key out of range");
+			}
+
+			return new View(newLo, newHi, descending);
+		}
+
+		/**
+		 * As TreeMap allows, an exclusive bound may sit on an
+		 * exclusive endpoint of this view.
+		 */
+		protected boolean withinRange(Bound b) {
+			if (b.inclusive) {
+				return inRange(b.bytes);
+			}
+
+			return (lo == null || Bytes.compare(b.bytes, lo.bytes) >= 0)
+					&& (hi == null || Bytes.compare(b.bytes, hi.bytes) <= 0);
+		}
+
+	}
+
+
+	/**
+	 * Scans the range forwards; remove() keeps the count right.
+	 */
+	protected class AscendingIterator implements Iterator<Map.Entry<K, V>> {
+
+		protected Iterator<Map.Entry<K, V>> entries;
+		protected Map.Entry<K, V> curEntry;
+
+		public AscendingIterator(Bound lo, Bound hi, boolean keysOnly) {
+			Range range = range(lo, hi);
+			this.entries = range != null
+					? new EntryIterator(range, keysOnly)
+					: Collections.<Map.Entry<K, V>>emptyList().iterator();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return entries.hasNext();
+		}
+
+		@Override
+		public Map.Entry<K, V> next() {
+			curEntry = entries.next();
+			return curEntry;
+		}
+
+		@Override
+		public void remove() {
+			NavigableAccumuloMap.this.remove(curEntry.getKey());
+		}
+
+	}
+
+
+	/**
+	 * Reads the range's tablets last to first.  A keys-only scan of
+	 * a tablet's part of the range notes every batchSize-th key, and
+	 * the windows between them are read last to first, keys only,
+	 * with their values fetched by a BatchScanner, so only a window
+	 * of entries is held at a time.
+	 */
+	protected class DescendingIterator implements Iterator<Map.Entry<K, V>> {
+
+		protected List<Range> tablets;
+		protected int tablet;
+		protected boolean keysOnly;
+		/** Where each window of the current tablet starts, and where the last one read starts. */
+		protected List<Text> starts = new ArrayList<Text>();
+		protected Range current;
+		protected Text windowEnd;
+		protected List<Map.Entry<Key, Value>> buffer;
+		protected int position;
+		protected Map.Entry<K, V> curEntry;
+
+		public DescendingIterator(Bound lo, Bound hi, boolean keysOnly) {
+			Range range = range(lo, hi);
+			if (range != null) {
+				sync();
+			}
+
+			this.tablets = range != null ? tabletRanges(range) : Collections.<Range>emptyList();
+			this.tablet = tablets.size();
+			this.keysOnly = keysOnly;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (position == 0) {
+				if (!starts.isEmpty()) {
+					fillWindow();
+				}
+				else if (tablet > 0) {
+					startTablet(tablets.get(--tablet));
+				}
+				else {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		protected void startTablet(Range range) {
+			current = range;
+			windowEnd = null;
+
+			int count = 0;
+			for (Map.Entry<Key, Value> entry : newScanner(range, true)) {
+				if (!isMetaRow(entry.getKey().getRowData()) && count++ % batchSize == 0) {
+					starts.add(entry.getKey().getRow());
+				}
+			}
+		}
+
+		protected void fillWindow() {
+			Text start = starts.remove(starts.size() - 1);
+			Range window = current.clip(new Range(start, true, windowEnd, false), true);
+			windowEnd = start;
+
+			buffer = new ArrayList<Map.Entry<Key, Value>>();
+			if (window != null) {
+				for (Map.Entry<Key, Value> entry : newScanner(window, true)) {
+					if (!isMetaRow(entry.getKey().getRowData())) {
+						buffer.add(entry);
+					}
+				}
+			}
+
+			if (!keysOnly && !buffer.isEmpty()) {
+				fetchValues();
+			}
+			position = buffer.size();
+		}
+
+		/**
+		 * Replaces the window's keys with their entries,
+		 * dropping any deleted since the keys were read.
+		 */
+		protected void fetchValues() {
+			List<Range> ranges = new ArrayList<Range>(buffer.size());
+			for (Map.Entry<Key, Value> entry : buffer) {
+				ranges.add(new Range(entry.getKey().getRow()));
+			}
+
+			Map<Text, Map.Entry<Key, Value>> found = new HashMap<Text, Map.Entry<Key, Value>>();
+			BatchScanner batchScanner;
+			try {
+				batchScanner = conn.createBatchScanner(table, Constants.NO_AUTHS, queryThreads);
+			} catch (TableNotFoundException e) {
+				throw new RuntimeException(e);
+			}
+
+			try {
+				batchScanner.setRanges(ranges);
+				for (Map.Entry<Key, Value> entry : batchScanner) {
+					found.put(entry.getKey().getRow(), entry);
+				}
+			} finally {
+				batchScanner.close();
+			}
+
+			List<Map.Entry<Key, Value>> entries = new ArrayList<Map.Entry<Key, Value>>(buffer.size());
+			for (Map.Entry<Key, Value> entry : buffer) {
+				Map.Entry<Key, Value> full = found.get(entry.getKey().getRow());
+				if (full != null) {
+					entries.add(full);
+				}
+			}
+			buffer = entries;
+		}
+
+		@Override
+		public Map.Entry<K, V> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+
+			curEntry = new EntryWrapper(buffer.get(--position));
+			return curEntry;
+		}
+
+		@Override
+		public void remove() {
+			NavigableAccumuloMap.this.remove(curEntry.getKey());
+		}
+
+	}
+
+
+	/**
+	 * Keys of a view, backed by it, walked
+	 * without fetching the values.
+	 */
+	protected class NavigableKeySet extends AbstractSet<K> implements NavigableSet<K> {
+
+		protected final View map;
+
+		public NavigableKeySet(View map) {
+			this.map = map;
+		}
+
+		@Override
+		public Iterator<K> iterator() {
+			final Iterator<Map.Entry<K, V>> i = map.entryIterator(true);
+
+			return new Iterator<K>() {
+				@Override
+				public boolean hasNext() {
+					return i.hasNext();
+				}
+
+				@Override
+				public K next() {
+					return i.next().getKey();
+				}
+
+				@Override
+				public void remove() {
+					i.remove();
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return map.size();
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return map.isEmpty();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return map.containsKey(o);
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			return map.remove(o) != null;
+		}
+
+		@Override
+		public boolean removeAll(Collection<?> c) {
+			boolean changed = false;
+			for (Object o : c) {
+				changed |= remove(o);
+			}
+			return changed;
+		}
+
+		@Override
+		public void clear() {
+			map.clear();
+		}
+
+		@Override
+		public Comparator<? super K> comparator() {
+			return map.comparator();
+		}
+
+		@Override
+		public K first() {
+			return map.firstKey();
+		}
+
+		@Override
+		public K last() {
+			return map.lastKey();
+		}
+
+		@Override
+		public K lower(K e) {
+			return map.lowerKey(e);
+		}
+
+		@Override
+		public K floor(K e) {
+			return map.floorKey(e);
+		}
+
+		@Override
+		public K ceiling(K e) {
+			return map.ceilingKey(e);
+		}
+
+		@Override
+		public K higher(K e) {
+			return map.higherKey(e);
+		}
+
+		@Override
+		public K pollFirst() {
+			return key(map.pollFirstEntry());
+		}
+
+		@Override
+		public K pollLast() {
+			return key(map.pollLastEntry());
+		}
+
+		@Override
+		public NavigableSet<K> descendingSet() {
+			return map.descendingKeySet();
+		}
+
+		@Override
+		public Iterator<K> descendingIterator() {
+			return descendingSet().iterator();
+		}
+
+		@Override
+		public NavigableSet<K> subSet(K fromElement, boolean fromInclusive, K toElement, boolean toInclusive) {
+			return map.subMap(fromElement, fromInclusive, toElement, toInclusive).navigableKeySet();
+		}
+
+		@Override
+		public NavigableSet<K> headSet(K toElement, boolean inclusive) {
+			return map.headMap(toElement, inclusive).navigableKeySet();
+		}
+
+		@Override
+		public NavigableSet<K> tailSet(K fromElement, boolean inclusive) {
+			return map.tailMap(fromElement, inclusive).navigableKeySet();
+		}
+
+		@Override
+		public SortedSet<K> subSet(K fromElement, K toElement) {
+			return subSet(fromElement, true, toElement, false);
+		}
+
+		@Override
+		public SortedSet<K> headSet(K toElement) {
+			return headSet(toElement, false);
+		}
+
+		@Override
+		public SortedSet<K> tailSet(K fromElement) {
+			return tailSet(fromElement, true);
+		}
+
+	}
+
+}
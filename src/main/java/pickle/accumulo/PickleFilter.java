@@ -0,0 +1,111 @@
+package pickle.accumulo;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.data.ByteSequence;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.Filter;
+import org.apache.accumulo.core.iterators.IteratorEnvironment;
+import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+
+import pickle.ClassRegistry;
+import pickle.OrderedCodec;
+import pickle.Pickler;
+
+import com.esotericsoftware.kryo.KryoException;
+
+/**
+ * Runs an {@link AccumuloMap.Predicate} on the tablet servers, so
+ * only the entries it accepts are sent back.  The predicate and the
+ * map's classes are passed as pickled options, and entries are
+ * unpickled on the server, so this jar, Kryo, and the classes of the
+ * predicate and of the map's keys and values must be on the tablet
+ * servers' classpath.
+ *
+ * The metadata rows are never accepted.  Keys are unpickled with
+ * Kryo, or decoded with {@link OrderedCodec} once
+ * {@link #setOrderedKeys} has been called, as for a
+ * {@link NavigableAccumuloMap}.
+ *
+ * Entries using a class registered after the scan started can't
+ * be unpickled here, so they're passed on, and the client, which
+ * reloads its registry for them, runs the predicate on them.
+ *
+ * @author Michael Lieberman
+ */
+public class PickleFilter extends Filter {
+
+	protected static final String PREDICATE = "predicate";
+	protected static final String CLASSES = "classes";
+	protected static final String ORDERED_KEYS = "orderedKeys";
+
+	protected AccumuloMap.Predicate<Object, Object> predicate;
+	protected ClassRegistry registry;
+	protected boolean orderedKeys;
+
+	/**
+	 * Sets the predicate, and the classes to unpickle with.
+	 * Classes registered after this won't be known to the filter,
+	 * which accepts the entries using them.
+	 */
+	public static void setPredicate(IteratorSetting setting,
+			AccumuloMap.Predicate<?, ?> predicate, ClassRegistry registry) {
+		setting.addOption(PREDICATE, Pickler.pickleToString(predicate));
+		setting.addOption(CLASSES, Pickler.pickleToString(registry.getClasses()));
+	}
+
+	public static void setOrderedKeys(IteratorSetting setting) {
+		setting.addOption(ORDERED_KEYS, "true");
+	}
+
+	@Override
+	public void init(SortedKeyValueIterator<Key, Value> source,
+			Map<String, String> options, IteratorEnvironment env) throws IOException {
+		super.init(source, options, env);
+
+		predicate = Pickler.unpickleFromString(options.get(PREDICATE));
+		registry = new ClassRegistry(Pickler.<Map<Integer, String>>unpickleFromString(options.get(CLASSES)), null);
+		orderedKeys = Boolean.parseBoolean(options.get(ORDERED_KEYS));
+	}
+
+	@Override
+	public boolean validateOptions(Map<String, String> options) {
+		return super.validateOptions(options)
+				&& options.containsKey(PREDICATE) && options.containsKey(CLASSES);
+	}
+
+	@Override
+	public SortedKeyValueIterator<Key, Value> deepCopy(IteratorEnvironment env) {
+		PickleFilter copy = (PickleFilter) super.deepCopy(env);
+		copy.predicate = predicate;
+		copy.registry = registry;
+		copy.orderedKeys = orderedKeys;
+		return copy;
+	}
+
+	@Override
+	public boolean accept(Key k, Value v) {
+		ByteSequence row = k.getRowData();
+		if (AccumuloMap.isMetaRow(row)) {
+			return false;
+		}
+
+		Object key;
+		Object value;
+		try {
+			key = orderedKeys
+					? OrderedCodec.decode(row.getBackingArray(), row.offset(), row.length())
+					: Pickler.unpickle(row.getBackingArray(), row.offset(), row.length(), registry);
+			value = Pickler.unpickle(v.get(), registry);
+		} catch (KryoException e) {
+			// Most likely a class registered since the scan started.
+			return true;
+		}
+
+		return predicate.accept(key, value);
+	}
+
+}
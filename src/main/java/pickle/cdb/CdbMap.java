@@ -1,52 +1,106 @@
 package pickle.cdb;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.AbstractMap;
 import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
+import pickle.ClassRegistry;
 import pickle.KV;
 import pickle.PickleMap;
 import pickle.KV.Type;
 
-import com.strangegizmo.cdb.Cdb;
-import com.strangegizmo.cdb.CdbElement;
 import com.strangegizmo.cdb.CdbMake;
 
 /**
+ * Files are read through {@link MappedCdb}, so lookups and
+ * iteration are safe from any number of threads at once.
+ *
+ * The entry and distinct key counts are written as metadata when a
+ * file is made, so size() and sizeWithDups() don't scan the file.
+ * As before, a key only counts as a duplicate when it is put right
+ * after itself, which is how multiple values per key are written.
+ *
  * @author Michael Lieberman
  */
 public class CdbMap<K, V> extends AbstractMap<K, V> implements PickleMap<K, V> {
 
 	public static enum Mode {CREATE, READ};
 
-	protected Cdb cdb;
+	protected static final byte[] CLASSES = KV.toBytes(Type.META, "classes");
+	protected static final byte[] SIZE = KV.toBytes(Type.META, "size");
+	protected static final byte[] SIZE_WITH_DUPS = KV.toBytes(Type.META, "sizeWithDups");
+
+	protected MappedCdb cdb;
 	protected CdbMake make;
 	protected Mode mode;
 	protected String file;
+	protected ClassRegistry registry;
+
+	/** Counts, or -1 until read or counted. */
+	protected int size = -1;
+	protected int sizeWithDups = -1;
+	/** The last key put, for spotting duplicates. */
+	protected byte[] lastKey;
 
 	public CdbMap(String file) throws IOException {
 		this(file, Mode.READ);
 	}
 
 	public CdbMap(String file, Mode mode) throws IOException {
+		this(file, mode, mode == Mode.CREATE ? newRegistry() : null);
+	}
+
+	/**
+	 * Creates a file with a registry that may be shared
+	 * with other files, as {@link ShardedCdbMap}'s shards do.
+	 */
+	protected CdbMap(String file, Mode mode, ClassRegistry registry) throws IOException {
 		this.file = file;
 		this.mode = mode;
 
 		if (mode == Mode.CREATE) {
 			make = new CdbMake();
 			make.start(file);
+			size = 0;
+			sizeWithDups = 0;
+			this.registry = registry;
 		}
 		else {
-			cdb = new Cdb(file);
+			cdb = new MappedCdb(file);
+
+			// Older files have no registry and use class names throughout.
+			byte[] classes = cdb.find(CLASSES);
+			this.registry = classes != null
+					? new ClassRegistry(KV.<Map<Integer, String>>fromBytes(classes), null)
+					: ClassRegistry.NONE;
+
+			// Older files have no counts; they're counted when first asked for.
+			size = readCount(SIZE);
+			sizeWithDups = readCount(SIZE_WITH_DUPS);
 		}
 	}
 
+	/**
+	 * Classes are written out with everything else in close().
+	 */
+	protected static ClassRegistry newRegistry() {
+		return new ClassRegistry(new ClassRegistry.Store() {
+			@Override
+			public void store(int id, String className) {
+				// Nothing to do.
+			}
+		});
+	}
+
 	@Override
 	public void flush() {
 		// Nothing to do
@@ -56,6 +110,9 @@ public class CdbMap<K, V> extends AbstractMap<K, V> implements PickleMap<K, V> {
 	public void close() {
 		try {
 			if (mode == Mode.CREATE) {
+				make.add(CLASSES, KV.toBytes(Type.DATA, registry.getClasses()));
+				make.add(SIZE, KV.toBytes(Type.DATA, size));
+				make.add(SIZE_WITH_DUPS, KV.toBytes(Type.DATA, sizeWithDups));
 				make.finish();
 			}
 			else {
@@ -67,6 +124,21 @@ public class CdbMap<K, V> extends AbstractMap<K, V> implements PickleMap<K, V> {
 		}
 	}
 
+	/**
+	 * Gives up on a file being made.  CdbMake only lets go of its
+	 * file in finish(), so the file is finished, or left as it is if
+	 * that fails too, and then deleted.
+	 */
+	protected void discard() {
+		try {
+			make.finish();
+		} catch (IOException e) {
+			// Deleted either way
+		}
+
+		new File(file).delete();
+	}
+
 	@Override
 	public boolean containsKey(Object key) {
 		return get(key) != null;
@@ -78,19 +150,40 @@ public class CdbMap<K, V> extends AbstractMap<K, V> implements PickleMap<K, V> {
 			modeError();
 		}
 
-		byte[] val = cdb.find(KV.toBytes(Type.DATA, key));
-		return val != null ? KV.<V>fromBytes(val) : null;
+		return find(KV.toBytes(Type.DATA, key, registry));
+	}
+
+	/**
+	 * Looks up an already pickled key.
+	 */
+	protected V find(byte[] key) {
+		byte[] val = cdb.find(key);
+		return val != null ? KV.<V>fromBytes(val, registry) : null;
+	}
+
+	@Override
+	public Map<K, V> getMany(Collection<? extends K> keys) {
+		Map<K, V> found = new HashMap<K, V>();
+
+		for (K key : keys) {
+			V value = get(key);
+			if (value != null) {
+				found.put(key, value);
+			}
+		}
+
+		return found;
 	}
 
 	public Iterable<V> getAll(Object key) {
-		Collection<V> values = new ArrayList<V>();
+		return findAll(KV.toBytes(Type.DATA, key, registry));
+	}
 
-		byte[] k = KV.toBytes(Type.DATA, key);
-		cdb.findstart(k);
+	protected Iterable<V> findAll(byte[] key) {
+		Collection<V> values = new ArrayList<V>();
 
-		byte[] v;
-		while ((v = cdb.findnext(k)) != null) {
-			values.add(KV.<V>fromBytes(v));
+		for (byte[] v : cdb.findAll(key)) {
+			values.add(KV.<V>fromBytes(v, registry));
 		}
 
 		return values;
@@ -103,8 +196,7 @@ public class CdbMap<K, V> extends AbstractMap<K, V> implements PickleMap<K, V> {
 		}
 
 		try {
-			make.add(KV.toBytes(Type.DATA, key),
-					KV.toBytes(Type.DATA, value));
+			add(key, value);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
@@ -113,13 +205,66 @@ public class CdbMap<K, V> extends AbstractMap<K, V> implements PickleMap<K, V> {
 		return null;
 	}
 
+	@Override
+	public void set(K key, V value) {
+		put(key, value);
+	}
+
+	/**
+	 * Streams the entries straight into the file being made.
+	 */
+	@Override
+	public void putAll(Map<? extends K, ? extends V> m) {
+		if (mode != Mode.CREATE) {
+			modeError();
+		}
+
+		try {
+			for (Map.Entry<? extends K, ? extends V> entry : m.entrySet()) {
+				add(entry.getKey(), entry.getValue());
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	protected void add(K key, V value) throws IOException {
+		add(KV.toBytes(Type.DATA, key, registry), KV.toBytes(Type.DATA, value, registry));
+	}
+
+	protected void add(byte[] k, byte[] v) throws IOException {
+		make.add(k, v);
+
+		sizeWithDups++;
+		if (!Arrays.equals(k, lastKey)) {
+			size++;
+		}
+		lastKey = k;
+	}
+
 	@Override
 	public V remove(Object key) {
 		throw new UnsupportedOperationException();
 	}
 
+	@Override
+	public void removeAll(Collection<?> keys) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public int size() {
+		if (size < 0) {
+			size = getSize(false);
+		}
+		return size;
+	}
+
 	public int sizeWithDups() {
-		return getSize(true);
+		if (sizeWithDups < 0) {
+			sizeWithDups = getSize(true);
+		}
+		return sizeWithDups;
 	}
 
 	@Override
@@ -131,25 +276,39 @@ public class CdbMap<K, V> extends AbstractMap<K, V> implements PickleMap<K, V> {
 		return new EntrySet();
 	}
 
+	@Override
+	public Set<K> keySet() {
+		if (mode != Mode.READ) {
+			modeError();
+		}
+
+		return new KeySet();
+	}
+
 	protected int getSize(boolean withDupKeys) {
-		Iterator<Map.Entry<K, V>> i = entrySet().iterator();
+		Iterator<K> i = keySet().iterator();
 
 		K prev = null;
 
-		int size = 0;
+		int count = 0;
 		while (i.hasNext()) {
-			Map.Entry<K, V> cur = i.next();
+			K cur = i.next();
 
-			if (cur.getKey().equals(prev)) {
+			if (!withDupKeys && cur.equals(prev)) {
 				continue;
 			}
 
-			size++;
+			count++;
 
-			prev = cur.getKey();
+			prev = cur;
 		}
 
-		return size;
+		return count;
+	}
+
+	protected int readCount(byte[] key) {
+		byte[] count = cdb.find(key);
+		return count != null ? KV.<Integer>fromBytes(count) : -1;
 	}
 
 	protected void error(Exception e) {
@@ -169,32 +328,91 @@ public class CdbMap<K, V> extends AbstractMap<K, V> implements PickleMap<K, V> {
 
 		@Override
 		public int size() {
-			return getSize(false);
+			return CdbMap.this.size();
 		}
 
 	}
 
 	protected class EntryIterator implements Iterator<Map.Entry<K, V>> {
 
-		protected Enumeration<CdbElement> enumeration;
+		protected Iterator<Map.Entry<byte[], byte[]>> records;
+		protected Map.Entry<byte[], byte[]> nextElement;
 
-		@SuppressWarnings("unchecked")
 		public EntryIterator() {
-			try {
-				enumeration = Cdb.elements(file);
-			} catch (IOException e) {
-				throw new RuntimeException(e);
+			records = cdb.iterator();
+			advance();
+		}
+
+		/**
+		 * Moves to the next data record, skipping metadata.
+		 */
+		protected void advance() {
+			nextElement = null;
+			while (nextElement == null && records.hasNext()) {
+				Map.Entry<byte[], byte[]> element = records.next();
+				if (KV.typeOf(element.getKey()) == Type.DATA) {
+					nextElement = element;
+				}
 			}
 		}
 
 		@Override
 		public boolean hasNext() {
-			return enumeration.hasMoreElements();
+			return nextElement != null;
 		}
 
 		@Override
 		public Map.Entry<K, V> next() {
-			return new CdbEntry(enumeration.nextElement());
+			if (nextElement == null) {
+				throw new NoSuchElementException();
+			}
+
+			CdbEntry entry = new CdbEntry(nextElement);
+			advance();
+			return entry;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+	/**
+	 * Walks the keys without decoding any values.
+	 */
+	protected class KeySet extends AbstractSet<K> {
+
+		@Override
+		public Iterator<K> iterator() {
+			return new KeyIterator();
+		}
+
+		@Override
+		public int size() {
+			return CdbMap.this.size();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return containsKey(o);
+		}
+
+	}
+
+	protected class KeyIterator implements Iterator<K> {
+
+		protected EntryIterator entries = new EntryIterator();
+
+		@Override
+		public boolean hasNext() {
+			return entries.hasNext();
+		}
+
+		@Override
+		public K next() {
+			return entries.next().getKey();
 		}
 
 		@Override
@@ -204,23 +422,36 @@ public class CdbMap<K, V> extends AbstractMap<K, V> implements PickleMap<K, V> {
 
 	}
 
+	/**
+	 * Decodes the key and value only when first asked for.
+	 */
 	protected class CdbEntry implements Map.Entry<K, V> {
 
+		protected byte[] keyBytes;
+		protected byte[] valueBytes;
 		protected K key;
 		protected V value;
 
-		public CdbEntry(CdbElement element) {
-			this.key = KV.fromBytes(element.getKey());
-			this.value = KV.fromBytes(element.getData());
+		public CdbEntry(Map.Entry<byte[], byte[]> element) {
+			this.keyBytes = element.getKey();
+			this.valueBytes = element.getValue();
 		}
 
 		@Override
 		public K getKey() {
+			if (keyBytes != null) {
+				key = KV.fromBytes(keyBytes, registry);
+				keyBytes = null;
+			}
 			return key;
 		}
 
 		@Override
 		public V getValue() {
+			if (valueBytes != null) {
+				value = KV.fromBytes(valueBytes, registry);
+				valueBytes = null;
+			}
 			return value;
 		}
 
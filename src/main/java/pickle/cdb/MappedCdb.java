@@ -0,0 +1,253 @@
+package pickle.cdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads a CDB file through memory maps instead of the seeks and
+ * reads {@link com.strangegizmo.cdb.Cdb} makes for every probe.
+ * Hash slots and keys are compared in place in the mapped file;
+ * only the data of a match is copied out.
+ *
+ * Nothing changes after the constructor and all reads use absolute
+ * positions, so any number of threads can look up and iterate at
+ * once without locking.  CDB files can reach 4 GB and a mapping
+ * can't pass 2 GB, so the file is mapped in segments.
+ *
+ * @author Michael Lieberman
+ */
+public class MappedCdb {
+
+	/** 256 (position, length) pairs of hash tables. */
+	protected static final int HEADER_SIZE = 2048;
+
+	protected static final long SEGMENT_SIZE = 1L << 30;
+
+	protected final RandomAccessFile file;
+	protected final long length;
+	protected final MappedByteBuffer[] segments;
+	protected final long[] tablePositions = new long[256];
+	protected final int[] tableSlots = new int[256];
+	/** Where the records end and the hash tables begin. */
+	protected final long recordsEnd;
+
+	public MappedCdb(String file) throws IOException {
+		this(new File(file));
+	}
+
+	public MappedCdb(File file) throws IOException {
+		this.file = new RandomAccessFile(file, "r");
+		this.length = this.file.length();
+
+		FileChannel channel = this.file.getChannel();
+		int count = (int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+		this.segments = new MappedByteBuffer[count];
+		for (int i = 0; i < count; i++) {
+			long start = i * SEGMENT_SIZE;
+			segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, length - start));
+		}
+
+		long end = length;
+		for (int i = 0; i < 256; i++) {
+			tablePositions[i] = getInt(i * 8);
+			tableSlots[i] = (int) getInt(i * 8 + 4);
+			end = Math.min(end, tablePositions[i]);
+		}
+		this.recordsEnd = end;
+	}
+
+	/**
+	 * Returns the data of the first record with the key that
+	 * {@link com.strangegizmo.cdb.Cdb#find} would, or null.
+	 */
+	public byte[] find(byte[] key) {
+		long record = findRecord(key);
+		return record >= 0 ? data(record) : null;
+	}
+
+	/**
+	 * Returns the data of every record with the key, in the order
+	 * {@link com.strangegizmo.cdb.Cdb#findnext} returns them.
+	 */
+	public List<byte[]> findAll(byte[] key) {
+		List<byte[]> found = new ArrayList<byte[]>();
+
+		long hash = hash(key);
+		int table = (int) (hash & 0xff);
+		int slots = tableSlots[table];
+		if (slots == 0) {
+			return found;
+		}
+
+		long tablePosition = tablePositions[table];
+		int slot = (int) ((hash >>> 8) % slots);
+
+		for (int probe = 0; probe < slots; probe++) {
+			long slotPosition = tablePosition + 8L * ((slot + probe) % slots);
+			long record = getInt(slotPosition + 4);
+
+			if (record == 0) {
+				break;
+			}
+			if (getInt(slotPosition) == hash && keyEquals(record, key)) {
+				found.add(data(record));
+			}
+		}
+
+		return found;
+	}
+
+	/**
+	 * Walks every record in file order.
+	 */
+	public Iterator<Map.Entry<byte[], byte[]>> iterator() {
+		return new Iterator<Map.Entry<byte[], byte[]>>() {
+			protected long position = HEADER_SIZE;
+
+			@Override
+			public boolean hasNext() {
+				return position < recordsEnd;
+			}
+
+			@Override
+			public Map.Entry<byte[], byte[]> next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+
+				int keyLength = (int) getInt(position);
+				int dataLength = (int) getInt(position + 4);
+
+				byte[] key = new byte[keyLength];
+				byte[] data = new byte[dataLength];
+				get(position + 8, key);
+				get(position + 8 + keyLength, data);
+
+				position += 8 + keyLength + dataLength;
+				return new AbstractMap.SimpleImmutableEntry<byte[], byte[]>(key, data);
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * The mappings go away when they're garbage collected;
+	 * this closes the file and drops them.
+	 */
+	public void close() throws IOException {
+		for (int i = 0; i < segments.length; i++) {
+			segments[i] = null;
+		}
+		file.close();
+	}
+
+
+	/**
+	 * Returns the position of the first record with the key, or -1.
+	 */
+	protected long findRecord(byte[] key) {
+		long hash = hash(key);
+		int table = (int) (hash & 0xff);
+		int slots = tableSlots[table];
+		if (slots == 0) {
+			return -1;
+		}
+
+		long tablePosition = tablePositions[table];
+		int slot = (int) ((hash >>> 8) % slots);
+
+		for (int probe = 0; probe < slots; probe++) {
+			long slotPosition = tablePosition + 8L * ((slot + probe) % slots);
+			long record = getInt(slotPosition + 4);
+
+			if (record == 0) {
+				return -1;
+			}
+			if (getInt(slotPosition) == hash && keyEquals(record, key)) {
+				return record;
+			}
+		}
+
+		return -1;
+	}
+
+	protected boolean keyEquals(long record, byte[] key) {
+		if (getInt(record) != key.length) {
+			return false;
+		}
+
+		long position = record + 8;
+		for (int i = 0; i < key.length; i++) {
+			if (get(position + i) != key[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	protected byte[] data(long record) {
+		long keyLength = getInt(record);
+		byte[] data = new byte[(int) getInt(record + 4)];
+		get(record + 8 + keyLength, data);
+		return data;
+	}
+
+	protected byte get(long position) {
+		return segments[(int) (position / SEGMENT_SIZE)].get((int) (position % SEGMENT_SIZE));
+	}
+
+	/**
+	 * Reads an unsigned little-endian 32-bit integer.
+	 */
+	protected long getInt(long position) {
+		return (get(position) & 0xffL)
+				| (get(position + 1) & 0xffL) << 8
+				| (get(position + 2) & 0xffL) << 16
+				| (get(position + 3) & 0xffL) << 24;
+	}
+
+	protected void get(long position, byte[] dst) {
+		int copied = 0;
+
+		while (copied < dst.length) {
+			int segment = (int) (position / SEGMENT_SIZE);
+			int offset = (int) (position % SEGMENT_SIZE);
+			int n = (int) Math.min(dst.length - copied, SEGMENT_SIZE - offset);
+
+			// A duplicate has its own position, so this doesn't disturb other readers.
+			ByteBuffer buffer = segments[segment].duplicate();
+			buffer.position(offset);
+			buffer.get(dst, copied, n);
+
+			copied += n;
+			position += n;
+		}
+	}
+
+	/**
+	 * The CDB hash: h = ((h << 5) + h) ^ c, from 5381, as unsigned 32 bits.
+	 */
+	public static long hash(byte[] key) {
+		long h = 5381;
+		for (byte b : key) {
+			h = (((h << 5) + h) ^ (b & 0xff)) & 0xffffffffL;
+		}
+		return h;
+	}
+
+}
@@ -0,0 +1,339 @@
+package pickle.cdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import pickle.PickleMap;
+import pickle.cdb.CdbMap.Mode;
+
+/**
+ * A read-only {@link CdbMap} whose file can be replaced while
+ * it's being read.  A new file is built next to the old one,
+ * renamed over it and opened, and lookups move to it with one
+ * atomic swap.  Lookups already under way finish on the old
+ * file, which is closed once the last of them is done, so a
+ * reload never blocks or fails a lookup.
+ *
+ * Iterators keep the file they started on open until they've
+ * been walked to the end.
+ *
+ * @author Michael Lieberman
+ */
+public class ReloadableCdbMap<K, V> extends AbstractMap<K, V> implements PickleMap<K, V> {
+
+	protected final File file;
+	protected final AtomicReference<Handle> current = new AtomicReference<Handle>();
+	protected final Object reloadLock = new Object();
+
+	public ReloadableCdbMap(String file) throws IOException {
+		this(new File(file));
+	}
+
+	public ReloadableCdbMap(File file) throws IOException {
+		this.file = file;
+		current.set(new Handle(new CdbMap<K, V>(file.getPath())));
+	}
+
+	/**
+	 * Writes the entries to a temporary file, renames it over
+	 * the current file and switches to it.
+	 */
+	public void rebuild(Map<? extends K, ? extends V> m) {
+		synchronized (reloadLock) {
+			File dir = file.getAbsoluteFile().getParentFile();
+			File temp = null;
+
+			try {
+				// In the same directory, so the rename doesn't cross file systems.
+				temp = File.createTempFile(file.getName()+".", ".tmp", dir);
+
+				CdbMap<K, V> make = new CdbMap<K, V>(temp.getPath(), Mode.CREATE);
+				make.putAll(m);
+				make.close();
+
+				if (!temp.renameTo(file)) {
+					throw new IOException("Couldn't rename "+temp+" to "+file);
+				}
+				temp = null;
+
+				reload();
+
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			} finally {
+				if (temp != null) {
+					temp.delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Opens the file again, e.g. after something else has
+	 * renamed a new one into place, and switches to it.
+	 */
+	public void reload() {
+		synchronized (reloadLock) {
+			if (current.get() == null) {
+				throw new IllegalStateException("Closed");
+			}
+
+			Handle handle;
+			try {
+				handle = new Handle(new CdbMap<K, V>(file.getPath()));
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+
+			current.getAndSet(handle).release();
+		}
+	}
+
+	@Override
+	public void flush() {
+		// Nothing to do
+	}
+
+	@Override
+	public void close() {
+		synchronized (reloadLock) {
+			Handle old = current.getAndSet(null);
+			if (old != null) {
+				old.release();
+			}
+		}
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	@Override
+	public V get(Object key) {
+		Handle handle = acquire();
+		try {
+			return handle.map.get(key);
+		} finally {
+			handle.release();
+		}
+	}
+
+	@Override
+	public Map<K, V> getMany(Collection<? extends K> keys) {
+		Handle handle = acquire();
+		try {
+			return handle.map.getMany(keys);
+		} finally {
+			handle.release();
+		}
+	}
+
+	public Iterable<V> getAll(Object key) {
+		Handle handle = acquire();
+		try {
+			return handle.map.getAll(key);
+		} finally {
+			handle.release();
+		}
+	}
+
+	@Override
+	public V put(K key, V value) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void set(K key, V value) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void putAll(Map<? extends K, ? extends V> m) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public V remove(Object key) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void removeAll(Collection<?> keys) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public int size() {
+		Handle handle = acquire();
+		try {
+			return handle.map.size();
+		} finally {
+			handle.release();
+		}
+	}
+
+	public int sizeWithDups() {
+		Handle handle = acquire();
+		try {
+			return handle.map.sizeWithDups();
+		} finally {
+			handle.release();
+		}
+	}
+
+	@Override
+	public Set<Map.Entry<K, V>> entrySet() {
+		return new EntrySet();
+	}
+
+	@Override
+	public Set<K> keySet() {
+		return new KeySet();
+	}
+
+	/**
+	 * Returns the current handle with a reference taken,
+	 * which the caller has to release.
+	 */
+	protected Handle acquire() {
+		while (true) {
+			Handle handle = current.get();
+			if (handle == null) {
+				throw new IllegalStateException("Closed");
+			}
+
+			// Fails only if the handle was swapped out and
+			// closed since it was read; the next read gets the new one.
+			if (handle.retain()) {
+				return handle;
+			}
+		}
+	}
+
+	/**
+	 * An open file and the number of references to it.  The
+	 * map holds one until the file is swapped out, and every
+	 * lookup and iterator holds one while it's using it.
+	 */
+	protected class Handle {
+
+		protected final CdbMap<K, V> map;
+		protected final AtomicInteger references = new AtomicInteger(1);
+
+		public Handle(CdbMap<K, V> map) {
+			this.map = map;
+		}
+
+		public boolean retain() {
+			while (true) {
+				int count = references.get();
+				if (count == 0) {
+					return false;
+				}
+				if (references.compareAndSet(count, count + 1)) {
+					return true;
+				}
+			}
+		}
+
+		public void release() {
+			if (references.decrementAndGet() == 0) {
+				map.close();
+			}
+		}
+
+	}
+
+	protected class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+
+		@Override
+		public Iterator<Map.Entry<K, V>> iterator() {
+			Handle handle = acquire();
+			return new HandleIterator<Map.Entry<K, V>>(handle, handle.map.entrySet().iterator());
+		}
+
+		@Override
+		public int size() {
+			return ReloadableCdbMap.this.size();
+		}
+
+	}
+
+	/**
+	 * Walks the keys without decoding any values.
+	 */
+	protected class KeySet extends AbstractSet<K> {
+
+		@Override
+		public Iterator<K> iterator() {
+			Handle handle = acquire();
+			return new HandleIterator<K>(handle, handle.map.keySet().iterator());
+		}
+
+		@Override
+		public int size() {
+			return ReloadableCdbMap.this.size();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return containsKey(o);
+		}
+
+	}
+
+	/**
+	 * Releases its handle once it's walked to the end.
+	 */
+	protected class HandleIterator<T> implements Iterator<T> {
+
+		protected Handle handle;
+		protected final Iterator<T> iterator;
+
+		public HandleIterator(Handle handle, Iterator<T> iterator) {
+			this.handle = handle;
+			this.iterator = iterator;
+			releaseIfDone();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return iterator.hasNext();
+		}
+
+		@Override
+		public T next() {
+			if (handle == null) {
+				throw new NoSuchElementException();
+			}
+
+			T next = iterator.next();
+			releaseIfDone();
+			return next;
+		}
+
+		protected void releaseIfDone() {
+			if (handle != null && !iterator.hasNext()) {
+				handle.release();
+				handle = null;
+			}
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+}
@@ -0,0 +1,411 @@
+package pickle.cdb;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import pickle.ClassRegistry;
+import pickle.KV;
+import pickle.PickleMap;
+import pickle.KV.Type;
+import pickle.cdb.CdbMap.Mode;
+
+/**
+ * Spreads keys over several CDB files by a hash of their pickled
+ * bytes, so a table isn't held to one file's 4 GB, and opens the
+ * files back as one map.  Shard i of "file" is "file.i", and every
+ * shard records how many there are.
+ *
+ * While creating, each shard has its own thread that pickles
+ * values and writes them, fed from put() through a queue, so a
+ * build uses as many cores as there are shards.  Values are
+ * pickled on the shard's thread after put() returns, so they
+ * shouldn't be changed once they're put.  Keys are pickled by
+ * put() to pick their shard.  The shards share one class registry
+ * so that a key pickles the same whichever shard it's read from.
+ *
+ * @author Michael Lieberman
+ */
+public class ShardedCdbMap<K, V> extends AbstractMap<K, V> implements PickleMap<K, V> {
+
+	protected static final byte[] SHARDS = KV.toBytes(Type.META, "shards");
+
+	public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+	/** Tells a writer there's nothing more to add. */
+	protected static final Map.Entry<byte[], Object> END =
+			new AbstractMap.SimpleImmutableEntry<byte[], Object>(null, null);
+
+	protected List<CdbMap<K, V>> shards = new ArrayList<CdbMap<K, V>>();
+	protected List<Writer> writers;
+	protected Mode mode;
+	protected String file;
+	protected ClassRegistry registry;
+
+	/**
+	 * Opens the shards of a file for reading.
+	 */
+	public ShardedCdbMap(String file) throws IOException {
+		this.file = file;
+		this.mode = Mode.READ;
+
+		CdbMap<K, V> first = new CdbMap<K, V>(shardFile(file, 0));
+		byte[] count = first.cdb.find(SHARDS);
+		if (count == null) {
+			first.close();
+			throw new IllegalStateException(shardFile(file, 0)+" isn't a shard");
+		}
+
+		shards.add(first);
+		for (int i = 1; i < KV.<Integer>fromBytes(count); i++) {
+			shards.add(new CdbMap<K, V>(shardFile(file, i)));
+		}
+
+		// Every shard was written with the same registry.
+		registry = first.registry;
+	}
+
+	public ShardedCdbMap(String file, int shards) throws IOException {
+		this(file, shards, DEFAULT_QUEUE_SIZE);
+	}
+
+	/**
+	 * Creates the given number of shards, each with a writer
+	 * thread taking up to queueSize entries at a time.
+	 */
+	public ShardedCdbMap(String file, int shards, int queueSize) throws IOException {
+		this.file = file;
+		this.mode = Mode.CREATE;
+		this.registry = CdbMap.newRegistry();
+		this.writers = new ArrayList<Writer>();
+
+		for (int i = 0; i < shards; i++) {
+			CdbMap<K, V> shard = new CdbMap<K, V>(shardFile(file, i), Mode.CREATE, registry);
+			shard.make.add(SHARDS, KV.toBytes(Type.DATA, shards));
+			this.shards.add(shard);
+		}
+
+		for (CdbMap<K, V> shard : this.shards) {
+			Writer writer = new Writer(shard, queueSize);
+			writer.start();
+			writers.add(writer);
+		}
+	}
+
+	public static String shardFile(String file, int shard) {
+		return file+"."+shard;
+	}
+
+	public int getShardCount() {
+		return shards.size();
+	}
+
+	@Override
+	public void flush() {
+		// Nothing to do
+	}
+
+	/**
+	 * When creating, waits for every shard to be written out.
+	 */
+	@Override
+	public void close() {
+		if (mode == Mode.CREATE) {
+			for (Writer writer : writers) {
+				writer.add(END);
+			}
+
+			Exception error = null;
+			for (Writer writer : writers) {
+				try {
+					writer.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException(e);
+				}
+
+				if (error == null) {
+					error = writer.error;
+				}
+			}
+
+			if (error != null) {
+				throw new RuntimeException(error);
+			}
+		}
+		else {
+			for (CdbMap<K, V> shard : shards) {
+				shard.close();
+			}
+		}
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	@Override
+	public V get(Object key) {
+		if (mode != Mode.READ) {
+			modeError();
+		}
+
+		byte[] k = KV.toBytes(Type.DATA, key, registry);
+		return shardFor(k).find(k);
+	}
+
+	@Override
+	public Map<K, V> getMany(Collection<? extends K> keys) {
+		Map<K, V> found = new HashMap<K, V>();
+
+		for (K key : keys) {
+			V value = get(key);
+			if (value != null) {
+				found.put(key, value);
+			}
+		}
+
+		return found;
+	}
+
+	public Iterable<V> getAll(Object key) {
+		byte[] k = KV.toBytes(Type.DATA, key, registry);
+		return shardFor(k).findAll(k);
+	}
+
+	@Override
+	public V put(K key, V value) {
+		if (mode != Mode.CREATE) {
+			modeError();
+		}
+
+		byte[] k = KV.toBytes(Type.DATA, key, registry);
+		writers.get(shardOf(k)).add(new AbstractMap.SimpleImmutableEntry<byte[], Object>(k, value));
+
+		// Not really correct but can't do much about it.
+		return null;
+	}
+
+	@Override
+	public void set(K key, V value) {
+		put(key, value);
+	}
+
+	@Override
+	public void putAll(Map<? extends K, ? extends V> m) {
+		for (Map.Entry<? extends K, ? extends V> entry : m.entrySet()) {
+			put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	@Override
+	public V remove(Object key) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void removeAll(Collection<?> keys) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for (CdbMap<K, V> shard : shards) {
+			size += shard.size();
+		}
+		return size;
+	}
+
+	public int sizeWithDups() {
+		int size = 0;
+		for (CdbMap<K, V> shard : shards) {
+			size += shard.sizeWithDups();
+		}
+		return size;
+	}
+
+	@Override
+	public Set<Map.Entry<K, V>> entrySet() {
+		if (mode != Mode.READ) {
+			modeError();
+		}
+
+		return new EntrySet();
+	}
+
+	@Override
+	public Set<K> keySet() {
+		if (mode != Mode.READ) {
+			modeError();
+		}
+
+		return new KeySet();
+	}
+
+	protected int shardOf(byte[] key) {
+		return (Arrays.hashCode(key) & Integer.MAX_VALUE) % shards.size();
+	}
+
+	protected CdbMap<K, V> shardFor(byte[] key) {
+		return shards.get(shardOf(key));
+	}
+
+	protected void modeError() {
+		throw new RuntimeException("Incorrect mode! "+mode);
+	}
+
+	/**
+	 * Writes one shard from its queue.  After an error it keeps
+	 * taking entries, so put() doesn't block, and put() and
+	 * close() throw the error.  A shard that fails is deleted.
+	 */
+	protected class Writer extends Thread {
+
+		protected final CdbMap<K, V> shard;
+		protected final BlockingQueue<Map.Entry<byte[], Object>> queue;
+		protected volatile Exception error;
+
+		public Writer(CdbMap<K, V> shard, int queueSize) {
+			super("ShardedCdbMap writer "+shard.file);
+			this.shard = shard;
+			this.queue = new ArrayBlockingQueue<Map.Entry<byte[], Object>>(queueSize);
+		}
+
+		public void add(Map.Entry<byte[], Object> entry) {
+			if (error != null) {
+				throw new RuntimeException(error);
+			}
+
+			try {
+				queue.put(entry);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				Map.Entry<byte[], Object> entry;
+				while ((entry = queue.take()) != END) {
+					if (error != null) {
+						continue;
+					}
+
+					try {
+						shard.add(entry.getKey(), KV.toBytes(Type.DATA, entry.getValue(), registry));
+					} catch (Exception e) {
+						error = e;
+					}
+				}
+
+				if (error == null) {
+					shard.close();
+				}
+
+			} catch (Exception e) {
+				error = e;
+			} finally {
+				// Don't leave a partial shard open, or behind.
+				if (error != null) {
+					shard.discard();
+				}
+			}
+		}
+
+	}
+
+	protected class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+
+		@Override
+		public Iterator<Map.Entry<K, V>> iterator() {
+			return new ShardIterator<Map.Entry<K, V>>() {
+				@Override
+				protected Iterator<Map.Entry<K, V>> iterator(CdbMap<K, V> shard) {
+					return shard.entrySet().iterator();
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return ShardedCdbMap.this.size();
+		}
+
+	}
+
+	/**
+	 * Walks the keys without decoding any values.
+	 */
+	protected class KeySet extends AbstractSet<K> {
+
+		@Override
+		public Iterator<K> iterator() {
+			return new ShardIterator<K>() {
+				@Override
+				protected Iterator<K> iterator(CdbMap<K, V> shard) {
+					return shard.keySet().iterator();
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return ShardedCdbMap.this.size();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return containsKey(o);
+		}
+
+	}
+
+	/**
+	 * Walks each shard in turn.
+	 */
+	protected abstract class ShardIterator<T> implements Iterator<T> {
+
+		protected int shard = 0;
+		protected Iterator<T> current = iterator(shards.get(0));
+
+		protected abstract Iterator<T> iterator(CdbMap<K, V> shard);
+
+		@Override
+		public boolean hasNext() {
+			while (!current.hasNext() && shard + 1 < shards.size()) {
+				current = iterator(shards.get(++shard));
+			}
+			return current.hasNext();
+		}
+
+		@Override
+		public T next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return current.next();
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+}
@@ -0,0 +1,184 @@
+package pickle.jdbc;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Settings for {@link SQLiteMap}, with setters that chain like
+ * {@link pickle.leveldb.LevelDBConfig}'s.  Pragmas left null keep
+ * SQLite's own defaults.
+ *
+ * @author Michael Lieberman
+ */
+public class SQLiteConfig {
+
+	/**
+	 * How pickled keys and values are stored: as raw bytes,
+	 * or Base64 encoded as SQLiteMap always used to.
+	 */
+	public static enum Storage {BLOB, TEXT};
+
+	protected Storage storage = Storage.BLOB;
+	protected boolean migrateText = false;
+	protected boolean valueIndex = false;
+	protected String journalMode = "WAL";
+	protected String synchronous = "NORMAL";
+	protected Integer cacheSize;
+	protected Long mmapSize;
+	protected Integer pageSize;
+	protected int readers = 0;
+
+	/**
+	 * Storage for new tables.  Existing tables keep
+	 * theirs, unless migrateText is set.
+	 */
+	public SQLiteConfig storage(Storage storage) {
+		this.storage = storage;
+		return this;
+	}
+
+	public Storage storage() {
+		return storage;
+	}
+
+	/**
+	 * Whether to convert an existing TEXT table to BLOB
+	 * storage on open, if the storage is BLOB.
+	 */
+	public SQLiteConfig migrateText(boolean migrateText) {
+		this.migrateText = migrateText;
+		return this;
+	}
+
+	public boolean migrateText() {
+		return migrateText;
+	}
+
+	/**
+	 * Whether to index the value column, which speeds up
+	 * containsValue() at the cost of every write.  Tables
+	 * that already have the index keep it.
+	 */
+	public SQLiteConfig valueIndex(boolean valueIndex) {
+		this.valueIndex = valueIndex;
+		return this;
+	}
+
+	public boolean valueIndex() {
+		return valueIndex;
+	}
+
+	/**
+	 * E.g. WAL (the default), DELETE or TRUNCATE.
+	 */
+	public SQLiteConfig journalMode(String journalMode) {
+		this.journalMode = journalMode;
+		return this;
+	}
+
+	public String journalMode() {
+		return journalMode;
+	}
+
+	/**
+	 * OFF, NORMAL (the default, which is safe under WAL) or FULL.
+	 */
+	public SQLiteConfig synchronous(String synchronous) {
+		this.synchronous = synchronous;
+		return this;
+	}
+
+	public String synchronous() {
+		return synchronous;
+	}
+
+	/**
+	 * Page cache size in pages, or in KiB if negative.
+	 */
+	public SQLiteConfig cacheSize(Integer cacheSize) {
+		this.cacheSize = cacheSize;
+		return this;
+	}
+
+	public Integer cacheSize() {
+		return cacheSize;
+	}
+
+	/**
+	 * Bytes of the database file to memory map.  SQLite
+	 * ignores this before 3.7.17, which includes the
+	 * version bundled with sqlite-jdbc 3.7.2.
+	 */
+	public SQLiteConfig mmapSize(Long mmapSize) {
+		this.mmapSize = mmapSize;
+		return this;
+	}
+
+	public Long mmapSize() {
+		return mmapSize;
+	}
+
+	/**
+	 * Page size in bytes.  Only takes effect on a new database.
+	 */
+	public SQLiteConfig pageSize(Integer pageSize) {
+		this.pageSize = pageSize;
+		return this;
+	}
+
+	public Integer pageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * Size of the pool of read-only connections that makes the
+	 * map thread-safe, or 0 (the default) for a single connection.
+	 * Needs the WAL journal mode.
+	 */
+	public SQLiteConfig readers(int readers) {
+		this.readers = readers;
+		return this;
+	}
+
+	public int readers() {
+		return readers;
+	}
+
+
+	/**
+	 * Sets the pragmas on a newly opened connection,
+	 * before it has started a transaction.
+	 */
+	public void apply(Connection conn) throws SQLException {
+		Statement stmt = conn.createStatement();
+
+		// The page size has to be set before the journal mode creates the file.
+		pragma(stmt, "page_size", pageSize);
+		pragma(stmt, "journal_mode", journalMode);
+		pragma(stmt, "synchronous", synchronous);
+		pragma(stmt, "cache_size", cacheSize);
+		pragma(stmt, "mmap_size", mmapSize);
+
+		stmt.close();
+	}
+
+	/**
+	 * Sets the per-connection pragmas on a read-only connection.
+	 */
+	public void applyToReader(Connection conn) throws SQLException {
+		Statement stmt = conn.createStatement();
+
+		pragma(stmt, "cache_size", cacheSize);
+		pragma(stmt, "mmap_size", mmapSize);
+
+		stmt.close();
+	}
+
+	protected void pragma(Statement stmt, String name, Object value) throws SQLException {
+		if (value != null) {
+			stmt.execute("PRAGMA "+name+" = "+value);
+		}
+	}
+
+}
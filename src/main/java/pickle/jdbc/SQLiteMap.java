@@ -1,21 +1,48 @@
 package pickle.jdbc;
 
+import java.nio.ByteBuffer;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.AbstractMap;
 import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
+import org.apache.commons.codec.binary.Base64;
+
+import pickle.ClassRegistry;
 import pickle.PickleMap;
 import pickle.Pickler;
+import pickle.jdbc.SQLiteConfig.Storage;
 
 /**
+ * Keys and values are stored pickled in BLOB columns, or Base64
+ * encoded in TEXT columns in tables made before BLOB storage
+ * (see {@link SQLiteConfig}).
+ *
+ * By default the map uses one connection and isn't thread-safe.
+ * With {@link SQLiteConfig#readers(int)} set, writes are serialized
+ * on the one writer connection, point reads (get, containsKey,
+ * getMany, size) take a connection from a pool of read-only ones,
+ * and iterators read a page of batchSize rows at a time, in key
+ * order, through a pooled connection that goes straight back, so
+ * an abandoned iterator holds no connection.  Reads through the
+ * pool see only committed writes, and an iterator sees each page
+ * as of when it was read.
+ *
  * @author Michael Lieberman
  */
 public class SQLiteMap<K, V> extends AbstractMap<K, V> implements PickleMap<K, V> {
@@ -26,31 +53,94 @@ public class SQLiteMap<K, V> extends AbstractMap<K, V> implements PickleMap<K, V
 	private static final String KEY_INDEX = "pickle_keyIndex";
 	private static final String VALUE_INDEX = "pickle_valueIndex";
 
+	private static final String CLASSES_SUFFIX = "_classes";
+	private static final String ID_COLUMN = "pickle_id";
+	private static final String CLASS_COLUMN = "pickle_class";
+
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+
+	/** SQLite's default limit on parameters per statement. */
+	private static final int MAX_VARIABLES = 999;
+
+	/** Sorts before any pickled key, to start an iterator's first page. */
+	private static final byte[] FIRST_KEY = new byte[0];
+
+	private static final String MIGRATING_SUFFIX = "_migrating";
+
+	private static final String SIZE_SUFFIX = "_size";
+	private static final String SIZE_COLUMN = "pickle_size";
+	private static final String INSERT_TRIGGER_SUFFIX = "_sizeInsert";
+	private static final String DELETE_TRIGGER_SUFFIX = "_sizeDelete";
+
 	private String tableName;
+	private String classesTableName;
+	private String sizeTableName;
+	private SQLiteConfig config;
+	private boolean blobs;
+	private ClassRegistry registry;
+	private int batchSize = DEFAULT_BATCH_SIZE;
 
+	private String url;
 	private Connection conn;
-	private PreparedStatement stmtCount;
-	private PreparedStatement stmtEntries;
-	private PreparedStatement stmtSelectKey;
-	private PreparedStatement stmtSelectValue;
-	private PreparedStatement stmtInsertKey;
+	/** Reads on the writer connection. */
+	private Reader reader;
+	/** Read-only connections, or null for the single connection mode. */
+	private BlockingQueue<Reader> readers;
+	private final Object writeLock = new Object();
+	/**
+	 * Classes registered but not yet in the classes table.  The
+	 * registry adds to it holding its own lock, so it can't wait
+	 * for writeLock; the writes insert them instead.
+	 */
+	private final Map<Integer, String> newClasses = new TreeMap<Integer, String>();
+
 	private PreparedStatement stmtDeleteKey;
+	private PreparedStatement stmtReplaceKey;
+	// The driver can't executeUpdate() a statement once it has run a batch.
+	private PreparedStatement stmtDeleteBatch;
+	private PreparedStatement stmtReplaceBatch;
+	private PreparedStatement stmtInsertClass;
 
 	public SQLiteMap(String dbFile, String tableName) {
 		this(dbFile, tableName, true);
 	}
 
 	public SQLiteMap(String dbFile, String tableName, boolean autoCommit) {
+		this(dbFile, tableName, autoCommit, new SQLiteConfig());
+	}
+
+	public SQLiteMap(String dbFile, String tableName, SQLiteConfig config) {
+		this(dbFile, tableName, true, config);
+	}
+
+	public SQLiteMap(String dbFile, String tableName, boolean autoCommit, SQLiteConfig config) {
 		try {
 			Class.forName("org.sqlite.JDBC");
-			this.conn = DriverManager.getConnection("jdbc:sqlite:"+dbFile);
-			this.conn.setAutoCommit(autoCommit);
+			this.url = "jdbc:sqlite:"+dbFile;
+			this.conn = DriverManager.getConnection(url);
+			this.config = config;
+
+			if (config.readers() > 0 && !"WAL".equalsIgnoreCase(config.journalMode())) {
+				throw new IllegalArgumentException("Concurrent readers need journal_mode WAL");
+			}
+
+			// Pragmas like journal_mode can't be set inside a transaction.
+			config.apply(conn);
+
+			// So that INSERT OR REPLACE fires the delete trigger for the row it replaces.
+			conn.createStatement().execute("PRAGMA recursive_triggers = ON");
 
 			this.tableName = tableName;
+			this.classesTableName = tableName + CLASSES_SUFFIX;
+			this.sizeTableName = tableName + SIZE_SUFFIX;
 
+			// Committed as it's made, so the readers' connections can see it.
 			createTableIfNotExists();
+			loadRegistry();
+			this.conn.setAutoCommit(autoCommit);
 
 			prepareStatements();
+			openReaders();
 
 		} catch (ClassNotFoundException e) {
 			throw new RuntimeException(e);
@@ -60,107 +150,566 @@ public class SQLiteMap<K, V> extends AbstractMap<K, V> implements PickleMap<K, V
 	}
 
 	private void createTableIfNotExists() throws SQLException {
-		System.err.println("CREATE");
-		conn.createStatement().executeUpdate("CREATE TABLE IF NOT EXISTS "+tableName+" ("+KEY_COLUMN+" TEXT, "+VALUE_COLUMN+" TEXT)");
-		conn.createStatement().executeUpdate("CREATE UNIQUE INDEX IF NOT EXISTS "+KEY_INDEX+" ON "+tableName+" ("+KEY_COLUMN+")");
-		conn.createStatement().executeUpdate("CREATE INDEX IF NOT EXISTS "+VALUE_INDEX+" ON "+tableName+" ("+VALUE_COLUMN+")");
+		Storage storage = tableStorage();
+
+		if (storage == Storage.TEXT && config.storage() == Storage.BLOB && config.migrateText()) {
+			migrateTextToBlob();
+			storage = Storage.BLOB;
+		}
+
+		if (storage == null) {
+			storage = config.storage();
+		}
+		blobs = storage == Storage.BLOB;
+
+		if (blobs) {
+			// The key is the primary key, so it doesn't need a separate index.
+			conn.createStatement().executeUpdate(createBlobTable(tableName));
+		}
+		else {
+			conn.createStatement().executeUpdate("CREATE TABLE IF NOT EXISTS "+tableName+" ("+KEY_COLUMN+" TEXT, "+VALUE_COLUMN+" TEXT)");
+			conn.createStatement().executeUpdate("CREATE UNIQUE INDEX IF NOT EXISTS "+KEY_INDEX+" ON "+tableName+" ("+KEY_COLUMN+")");
+		}
+
+		// Only containsValue() uses it, and every write pays for it.
+		if (config.valueIndex()) {
+			conn.createStatement().executeUpdate("CREATE INDEX IF NOT EXISTS "+VALUE_INDEX+" ON "+tableName+" ("+VALUE_COLUMN+")");
+		}
+
+		createSizeTableIfNotExists();
+	}
+
+	/**
+	 * Keeps the row count in a one-row table, maintained by triggers
+	 * in the same transaction as every insert and delete, so size()
+	 * doesn't have to count.  Tables made before this get counted once.
+	 *
+	 * Other programs writing the table with INSERT OR REPLACE need
+	 * recursive_triggers on too, or replaced rows count twice.
+	 */
+	private void createSizeTableIfNotExists() throws SQLException {
+		boolean autoCommit = beginBatch();
+		boolean done = false;
+
+		try {
+			Statement stmt = conn.createStatement();
+
+			if (!tableExists(sizeTableName)) {
+				stmt.executeUpdate("CREATE TABLE "+sizeTableName+" ("+SIZE_COLUMN+" INTEGER)");
+				stmt.executeUpdate("INSERT INTO "+sizeTableName+" SELECT COUNT(*) FROM "+tableName);
+			}
+
+			stmt.executeUpdate("CREATE TRIGGER IF NOT EXISTS "+tableName+INSERT_TRIGGER_SUFFIX+" AFTER INSERT ON "+tableName
+					+" BEGIN UPDATE "+sizeTableName+" SET "+SIZE_COLUMN+" = "+SIZE_COLUMN+" + 1; END");
+			stmt.executeUpdate("CREATE TRIGGER IF NOT EXISTS "+tableName+DELETE_TRIGGER_SUFFIX+" AFTER DELETE ON "+tableName
+					+" BEGIN UPDATE "+sizeTableName+" SET "+SIZE_COLUMN+" = "+SIZE_COLUMN+" - 1; END");
+			stmt.close();
+			done = true;
+
+		} finally {
+			endBatch(autoCommit, done);
+		}
+	}
+
+	private String createBlobTable(String name) {
+		// WITHOUT ROWID would save the rowid b-tree, but needs SQLite 3.8.2.
+		return "CREATE TABLE IF NOT EXISTS "+name+" ("+KEY_COLUMN+" BLOB PRIMARY KEY, "+VALUE_COLUMN+" BLOB)";
+	}
+
+	/**
+	 * Returns the storage of the existing table, or null if there isn't one.
+	 */
+	private Storage tableStorage() throws SQLException {
+		Storage storage = null;
+
+		if (!tableExists(tableName)) {
+			return storage;
+		}
+
+		Statement stmt = conn.createStatement();
+		ResultSet rs = stmt.executeQuery("PRAGMA table_info("+tableName+")");
+		while (rs.next()) {
+			if (KEY_COLUMN.equals(rs.getString("name"))) {
+				storage = "BLOB".equalsIgnoreCase(rs.getString("type")) ? Storage.BLOB : Storage.TEXT;
+			}
+		}
+		rs.close();
+		stmt.close();
+
+		return storage;
+	}
+
+	/**
+	 * Copies a TEXT table into a new BLOB table, decoding the Base64 on
+	 * the way (SQLite has no function for it), and swaps it in.  The
+	 * pickles themselves, and so the class registry, stay the same.
+	 */
+	private void migrateTextToBlob() throws SQLException {
+		String migratingName = tableName + MIGRATING_SUFFIX;
+
+		boolean autoCommit = beginBatch();
+		boolean done = false;
+
+		try {
+			Statement stmt = conn.createStatement();
+			stmt.executeUpdate("DROP TABLE IF EXISTS "+migratingName);
+			stmt.executeUpdate(createBlobTable(migratingName));
+
+			PreparedStatement insert = conn.prepareStatement("INSERT INTO "+migratingName+" ("+KEY_COLUMN+", "+VALUE_COLUMN+") VALUES (?, ?)");
+			ResultSet rs = stmt.executeQuery("SELECT "+KEY_COLUMN+", "+VALUE_COLUMN+" FROM "+tableName);
+
+			int n = 0;
+			while (rs.next()) {
+				insert.setBytes(1, Base64.decodeBase64(rs.getString(1)));
+				insert.setBytes(2, Base64.decodeBase64(rs.getString(2)));
+				insert.addBatch();
+
+				if (++n % batchSize == 0) {
+					insert.executeBatch();
+				}
+			}
+			insert.executeBatch();
+			rs.close();
+			insert.close();
+
+			stmt.executeUpdate("DROP TABLE "+tableName);
+			stmt.executeUpdate("ALTER TABLE "+migratingName+" RENAME TO "+tableName);
+			stmt.close();
+			done = true;
+
+		} finally {
+			endBatch(autoCommit, done);
+		}
 	}
 
 	private void dropTable() throws SQLException {
 		conn.createStatement().executeUpdate("DROP TABLE IF EXISTS "+tableName);
+		conn.createStatement().executeUpdate("DROP TABLE IF EXISTS "+classesTableName);
+		conn.createStatement().executeUpdate("DROP TABLE IF EXISTS "+sizeTableName);
+	}
+
+	private void loadRegistry() throws SQLException {
+		if (!tableExists(classesTableName)) {
+			ResultSet rsCount = conn.createStatement().executeQuery("SELECT COUNT(*) FROM "+tableName);
+			rsCount.next();
+			int count = rsCount.getInt(1);
+			rsCount.close();
+
+			if (count > 0) {
+				// Written before class registries; keep writing class names.
+				registry = ClassRegistry.NONE;
+				return;
+			}
+
+			conn.createStatement().executeUpdate("CREATE TABLE "+classesTableName+" ("+ID_COLUMN+" INTEGER PRIMARY KEY, "+CLASS_COLUMN+" TEXT)");
+		}
+
+		Map<Integer, String> classes = new TreeMap<Integer, String>();
+		ResultSet rsClasses = conn.createStatement().executeQuery("SELECT "+ID_COLUMN+", "+CLASS_COLUMN+" FROM "+classesTableName);
+		while (rsClasses.next()) {
+			classes.put(rsClasses.getInt(1), rsClasses.getString(2));
+		}
+		rsClasses.close();
+
+		synchronized (newClasses) {
+			newClasses.clear();
+		}
+
+		registry = new ClassRegistry(classes, new ClassRegistry.Store() {
+			@Override
+			public void store(int id, String className) {
+				synchronized (newClasses) {
+					newClasses.put(id, className);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Inserts the classes registered since the last write, before
+	 * the data using them.  Called holding writeLock.
+	 */
+	private void storeNewClasses() throws SQLException {
+		Map<Integer, String> added;
+		synchronized (newClasses) {
+			if (newClasses.isEmpty()) {
+				return;
+			}
+			added = new TreeMap<Integer, String>(newClasses);
+			newClasses.clear();
+		}
+
+		for (Map.Entry<Integer, String> entry : added.entrySet()) {
+			stmtInsertClass.setInt(1, entry.getKey());
+			stmtInsertClass.setString(2, entry.getValue());
+			stmtInsertClass.executeUpdate();
+		}
+	}
+
+	private boolean tableExists(String name) throws SQLException {
+		PreparedStatement stmt = conn.prepareStatement("SELECT name FROM sqlite_master WHERE type = 'table' AND name = ?");
+		stmt.setString(1, name);
+		ResultSet rs = stmt.executeQuery();
+		boolean exists = rs.next();
+		rs.close();
+		stmt.close();
+		return exists;
 	}
 
 	private void prepareStatements() throws SQLException {
-		stmtCount = conn.prepareStatement("SELECT COUNT(*) FROM "+tableName);
-		stmtEntries = conn.prepareStatement("SELECT "+KEY_COLUMN+", "+VALUE_COLUMN+" FROM "+tableName);
-		stmtSelectKey = conn.prepareStatement("SELECT "+VALUE_COLUMN+" FROM "+tableName+" WHERE "+KEY_COLUMN+" = ?");
-		stmtSelectValue = conn.prepareStatement("SELECT "+KEY_COLUMN+" FROM "+tableName+" WHERE "+VALUE_COLUMN+" = ?");
-		stmtInsertKey = conn.prepareStatement("INSERT INTO "+tableName+" ("+KEY_COLUMN+", "+VALUE_COLUMN+") VALUES (?, ?)");
+		reader = new Reader(conn);
 		stmtDeleteKey = conn.prepareStatement("DELETE FROM "+tableName+" WHERE "+KEY_COLUMN+" = ?");
+		stmtReplaceKey = conn.prepareStatement("INSERT OR REPLACE INTO "+tableName+" ("+KEY_COLUMN+", "+VALUE_COLUMN+") VALUES (?, ?)");
+		stmtDeleteBatch = conn.prepareStatement("DELETE FROM "+tableName+" WHERE "+KEY_COLUMN+" = ?");
+		stmtReplaceBatch = conn.prepareStatement("INSERT OR REPLACE INTO "+tableName+" ("+KEY_COLUMN+", "+VALUE_COLUMN+") VALUES (?, ?)");
+
+		if (registry != ClassRegistry.NONE) {
+			stmtInsertClass = conn.prepareStatement("INSERT INTO "+classesTableName+" ("+ID_COLUMN+", "+CLASS_COLUMN+") VALUES (?, ?)");
+		}
+	}
+
+	private void openReaders() throws SQLException {
+		if (config.readers() > 0) {
+			readers = new ArrayBlockingQueue<Reader>(config.readers());
+			for (int i = 0; i < config.readers(); i++) {
+				readers.add(openReader());
+			}
+		}
+	}
+
+	private Reader openReader() throws SQLException {
+		org.sqlite.SQLiteConfig readOnly = new org.sqlite.SQLiteConfig();
+		readOnly.setReadOnly(true);
+
+		Connection readerConn = DriverManager.getConnection(url, readOnly.toProperties());
+		config.applyToReader(readerConn);
+		return new Reader(readerConn);
+	}
+
+	/**
+	 * Takes a reader from the pool, waiting for one if they're all
+	 * in use, or returns the writer connection's reader.
+	 */
+	private Reader borrow() {
+		if (readers == null) {
+			return reader;
+		}
+
+		try {
+			return readers.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void release(Reader r) {
+		if (r != reader) {
+			readers.add(r);
+		}
 	}
 
 
 	@Override
 	public boolean containsValue(Object value) {
+		Reader r = borrow();
+
 		try {
-			stmtSelectValue.setString(1, Pickler.pickleToString(value));
-			return stmtSelectValue.executeQuery().next();
+			bind(r.stmtSelectValue, 1, value);
+			ResultSet rs = r.stmtSelectValue.executeQuery();
+			boolean found = rs.next();
+			rs.close();
+			return found;
 
 		} catch (SQLException e) {
 			throw new RuntimeException(e);
+		} finally {
+			release(r);
 		}
 	}
 
 	@Override
 	public boolean containsKey(Object key) {
+		Reader r = borrow();
+
 		try {
-			stmtSelectKey.setString(1, Pickler.pickleToString(key));
-			return stmtSelectKey.executeQuery().next();
+			bind(r.stmtSelectKey, 1, key);
+			ResultSet rs = r.stmtSelectKey.executeQuery();
+			boolean found = rs.next();
+			rs.close();
+			return found;
 
 		} catch (SQLException e) {
 			throw new RuntimeException(e);
+		} finally {
+			release(r);
 		}
 	}
 
 	@Override
 	public V get(Object key) {
-		try {
-			stmtSelectKey.setString(1, Pickler.pickleToString(key));
-			ResultSet rsGet = stmtSelectKey.executeQuery();
-			return rsGet.next() ? Pickler.<V>unpickleFromString(rsGet.getString(VALUE_COLUMN)) : null;
+		Reader r = borrow();
 
+		try {
+			return get(r, toColumn(key));
 		} catch (SQLException e) {
 			throw new RuntimeException(e);
+		} finally {
+			release(r);
 		}
 	}
 
+	private V get(Reader r, byte[] keyColumn) throws SQLException {
+		bindColumn(r.stmtSelectKey, 1, keyColumn);
+		ResultSet rsGet = r.stmtSelectKey.executeQuery();
+		V value = rsGet.next() ? this.<V>fromColumn(column(rsGet, VALUE_COLUMN)) : null;
+		rsGet.close();
+		return value;
+	}
+
+	/**
+	 * Looks keys up with IN-list queries of up
+	 * to batchSize (or SQLite's limit) keys each.
+	 */
 	@Override
-	public V put(K key, V value) {
+	public Map<K, V> getMany(Collection<? extends K> keys) {
+		Reader r = borrow();
+
 		try {
-			V val = remove(key);
-			stmtInsertKey.setString(1, Pickler.pickleToString(key));
-			stmtInsertKey.setString(2, Pickler.pickleToString(value));
-			stmtInsertKey.executeUpdate();
-			return val;
+			Map<K, V> found = new HashMap<K, V>();
+			Map<ByteBuffer, K> chunk = new HashMap<ByteBuffer, K>();
+			int chunkSize = Math.min(batchSize, MAX_VARIABLES);
+
+			for (K key : keys) {
+				chunk.put(ByteBuffer.wrap(toColumn(key)), key);
+
+				if (chunk.size() == chunkSize) {
+					selectKeys(r, chunk, found);
+					chunk.clear();
+				}
+			}
+
+			if (!chunk.isEmpty()) {
+				selectKeys(r, chunk, found);
+			}
+
+			return found;
 
 		} catch (SQLException e) {
 			throw new RuntimeException(e);
+		} finally {
+			release(r);
+		}
+	}
+
+	private void selectKeys(Reader r, Map<ByteBuffer, K> keys, Map<K, V> found) throws SQLException {
+		StringBuilder params = new StringBuilder();
+		for (int i = 0; i < keys.size(); i++) {
+			params.append(i == 0 ? "?" : ", ?");
+		}
+
+		PreparedStatement stmt = r.conn.prepareStatement("SELECT "+KEY_COLUMN+", "+VALUE_COLUMN+" FROM "+tableName+" WHERE "+KEY_COLUMN+" IN ("+params+")");
+
+		int i = 1;
+		for (ByteBuffer key : keys.keySet()) {
+			bindColumn(stmt, i++, key.array());
+		}
+
+		ResultSet rs = stmt.executeQuery();
+		while (rs.next()) {
+			found.put(keys.get(ByteBuffer.wrap(column(rs, KEY_COLUMN))), this.<V>fromColumn(column(rs, VALUE_COLUMN)));
+		}
+		rs.close();
+		stmt.close();
+	}
+
+	@Override
+	public V put(K key, V value) {
+		synchronized (writeLock) {
+			try {
+				byte[] keyColumn = toColumn(key);
+				V old = get(reader, keyColumn);
+
+				// Replaces the row in one statement.  This SQLite (3.7.2) has
+				// neither ON CONFLICT DO UPDATE nor RETURNING for the old value.
+				bindColumn(stmtReplaceKey, 1, keyColumn);
+				bind(stmtReplaceKey, 2, value);
+				storeNewClasses();
+				stmtReplaceKey.executeUpdate();
+				return old;
+
+			} catch (SQLException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	@Override
+	public void set(K key, V value) {
+		synchronized (writeLock) {
+			try {
+				bind(stmtReplaceKey, 1, key);
+				bind(stmtReplaceKey, 2, value);
+				storeNewClasses();
+				stmtReplaceKey.executeUpdate();
+
+			} catch (SQLException e) {
+				throw new RuntimeException(e);
+			}
 		}
 	}
 
 	@Override
 	public V remove(Object key) {
-		try {
-			V value = get(key);
-			stmtDeleteKey.setString(1, Pickler.pickleToString(key));
-			stmtDeleteKey.executeUpdate();
-			return value;
+		synchronized (writeLock) {
+			try {
+				byte[] keyColumn = toColumn(key);
+				V value = get(reader, keyColumn);
+				bindColumn(stmtDeleteKey, 1, keyColumn);
+				stmtDeleteKey.executeUpdate();
+				return value;
 
-		} catch (SQLException e) {
-			throw new RuntimeException(e);
+			} catch (SQLException e) {
+				throw new RuntimeException(e);
+			}
 		}
 	}
 
+	/**
+	 * Replaces the entries with batched statements in
+	 * one transaction, executing every batchSize entries.
+	 */
 	@Override
-	public void clear() {
-		try {
-			dropTable();
-			createTableIfNotExists();
-			prepareStatements();
+	public void putAll(Map<? extends K, ? extends V> m) {
+		synchronized (writeLock) {
+			try {
+				boolean autoCommit = beginBatch();
+				boolean done = false;
 
-		} catch (SQLException e) {
-			throw new RuntimeException(e);
+				try {
+					int n = 0;
+					for (Map.Entry<? extends K, ? extends V> entry : m.entrySet()) {
+						bind(stmtReplaceBatch, 1, entry.getKey());
+						bind(stmtReplaceBatch, 2, entry.getValue());
+						stmtReplaceBatch.addBatch();
+
+						if (++n % batchSize == 0) {
+							storeNewClasses();
+							stmtReplaceBatch.executeBatch();
+						}
+					}
+					storeNewClasses();
+					stmtReplaceBatch.executeBatch();
+					done = true;
+
+				} finally {
+					endBatch(autoCommit, done);
+				}
+
+			} catch (SQLException e) {
+				throw new RuntimeException(e);
+			}
 		}
 	}
 
-	public void commit() {
-		try {
-			if (!conn.getAutoCommit()) {
+	/**
+	 * Deletes the keys with batched statements in
+	 * one transaction, executing every batchSize keys.
+	 */
+	@Override
+	public void removeAll(Collection<?> keys) {
+		synchronized (writeLock) {
+			try {
+				boolean autoCommit = beginBatch();
+				boolean done = false;
+
+				try {
+					int n = 0;
+					for (Object key : keys) {
+						bind(stmtDeleteBatch, 1, key);
+						stmtDeleteBatch.addBatch();
+
+						if (++n % batchSize == 0) {
+							stmtDeleteBatch.executeBatch();
+						}
+					}
+					stmtDeleteBatch.executeBatch();
+					done = true;
+
+				} finally {
+					endBatch(autoCommit, done);
+				}
+
+			} catch (SQLException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 * Turns off autocommit for a batch, returning the old setting.
+	 */
+	private boolean beginBatch() throws SQLException {
+		boolean autoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+		return autoCommit;
+	}
+
+	/**
+	 * Commits (or rolls back, if it failed) a batch
+	 * and restores autocommit, if it was on before it.
+	 */
+	private void endBatch(boolean autoCommit, boolean done) throws SQLException {
+		if (autoCommit) {
+			if (done) {
 				conn.commit();
 			}
+			else {
+				conn.rollback();
+			}
+			conn.setAutoCommit(true);
+		}
+	}
 
-		} catch (SQLException e) {
-			throw new RuntimeException(e);
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	@Override
+	public void clear() {
+		synchronized (writeLock) {
+			try {
+				dropTable();
+				createTableIfNotExists();
+				loadRegistry();
+				prepareStatements();
+
+				// The readers can only prepare statements on a committed table.
+				if (readers != null && !conn.getAutoCommit()) {
+					conn.commit();
+				}
+				reprepareReaders();
+
+			} catch (SQLException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	public void commit() {
+		synchronized (writeLock) {
+			try {
+				if (!conn.getAutoCommit()) {
+					conn.commit();
+				}
+
+			} catch (SQLException e) {
+				throw new RuntimeException(e);
+			}
 		}
 	}
 
@@ -171,89 +720,249 @@ public class SQLiteMap<K, V> extends AbstractMap<K, V> implements PickleMap<K, V
 
 	@Override
 	public void close() {
+		synchronized (writeLock) {
+			try {
+				if (readers != null) {
+					Reader r;
+					while ((r = readers.poll()) != null) {
+						r.conn.close();
+					}
+				}
+
+				conn.close();
+				conn = null;
+			} catch (SQLException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 * Prepares the pooled readers' statements again after the
+	 * table is recreated, waiting for any in use to come back.
+	 */
+	private void reprepareReaders() throws SQLException {
+		if (readers == null) {
+			return;
+		}
+
+		List<Reader> prepared = new ArrayList<Reader>();
+
 		try {
-			conn.close();
-			conn = null;
-		} catch (SQLException e) {
+			for (int i = 0; i < config.readers(); i++) {
+				prepared.add(new Reader(readers.take().conn));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 			throw new RuntimeException(e);
+		} finally {
+			readers.addAll(prepared);
 		}
 	}
 
+	/**
+	 * Pickles a key or value into the form it's stored in.
+	 */
+	private byte[] toColumn(Object obj) {
+		byte[] pickled = Pickler.pickle(obj, registry);
+		return blobs ? pickled : Base64.encodeBase64(pickled);
+	}
+
+	private <T> T fromColumn(byte[] column) {
+		return Pickler.unpickle(blobs ? column : Base64.decodeBase64(column), registry);
+	}
+
+	private void bind(PreparedStatement stmt, int index, Object obj) throws SQLException {
+		bindColumn(stmt, index, toColumn(obj));
+	}
+
+	private void bindColumn(PreparedStatement stmt, int index, byte[] column) throws SQLException {
+		if (blobs) {
+			stmt.setBytes(index, column);
+		}
+		else {
+			stmt.setString(index, new String(column));
+		}
+	}
+
+	private byte[] column(ResultSet rs, String name) throws SQLException {
+		return blobs ? rs.getBytes(name) : rs.getString(name).getBytes();
+	}
+
 	@Override
 	public Set<Map.Entry<K, V>> entrySet() {
 		return new EntrySet();
 	}
 
+	@Override
+	public Set<K> keySet() {
+		return new KeySet();
+	}
+
+	@Override
+	public int size() {
+		return count();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return count() == 0;
+	}
+
+	private int count() {
+		Reader r = borrow();
+
+		try {
+			ResultSet rsCount = r.stmtCount.executeQuery();
+			rsCount.next();
+			int count = rsCount.getInt(1);
+			rsCount.close();
+			return count;
+
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		} finally {
+			release(r);
+		}
+	}
+
 
 	class EntrySet extends AbstractSet<Map.Entry<K, V>> {
 
 		@Override
 		public Iterator<Map.Entry<K, V>> iterator() {
-			return new EntryIterator();
+			return new EntryIterator(false);
 		}
 
 		@Override
 		public int size() {
-			try {
-				ResultSet rsCount = stmtCount.executeQuery();
-				rsCount.next();
-				int count = rsCount.getInt(1);
-				return count;
+			return count();
+		}
 
-			} catch (SQLException e) {
-				throw new RuntimeException(e);
-			}
+	}
+
+	/**
+	 * Selects only the key column.
+	 */
+	class KeySet extends AbstractSet<K> {
+
+		@Override
+		public Iterator<K> iterator() {
+			final EntryIterator entries = new EntryIterator(true);
+
+			return new Iterator<K>() {
+				@Override
+				public boolean hasNext() {
+					return entries.hasNext();
+				}
+
+				@Override
+				public K next() {
+					return entries.next().getKey();
+				}
+
+				@Override
+				public void remove() {
+					entries.remove();
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return count();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return containsKey(o);
 		}
 
 	}
 
+	/**
+	 * A connection and its own read statements.
+	 */
+	private class Reader {
+
+		private final Connection conn;
+		private final PreparedStatement stmtCount;
+		private final PreparedStatement stmtEntries;
+		private final PreparedStatement stmtKeys;
+		private final PreparedStatement stmtSelectKey;
+		private final PreparedStatement stmtSelectValue;
+
+		public Reader(Connection conn) throws SQLException {
+			this.conn = conn;
+			stmtCount = conn.prepareStatement("SELECT "+SIZE_COLUMN+" FROM "+sizeTableName);
+			stmtEntries = conn.prepareStatement("SELECT "+KEY_COLUMN+", "+VALUE_COLUMN+" FROM "+tableName
+					+" WHERE "+KEY_COLUMN+" > ? ORDER BY "+KEY_COLUMN+" LIMIT ?");
+			stmtKeys = conn.prepareStatement("SELECT "+KEY_COLUMN+" FROM "+tableName
+					+" WHERE "+KEY_COLUMN+" > ? ORDER BY "+KEY_COLUMN+" LIMIT ?");
+			stmtSelectKey = conn.prepareStatement("SELECT "+VALUE_COLUMN+" FROM "+tableName+" WHERE "+KEY_COLUMN+" = ?");
+			stmtSelectValue = conn.prepareStatement("SELECT "+KEY_COLUMN+" FROM "+tableName+" WHERE "+VALUE_COLUMN+" = ?");
+		}
+
+	}
+
+	/**
+	 * Reads a page at a time, after the last key of the one before,
+	 * so that no connection or result set is held between calls.
+	 */
 	class EntryIterator implements Iterator<Map.Entry<K, V>> {
 
-		private ResultSet rsEntry;
+		private boolean keysOnly;
+		private List<EntryWrapper> page = new ArrayList<EntryWrapper>();
+		private int position;
+		private byte[] lastKey = FIRST_KEY;
+		private boolean lastPage;
 
-		private boolean hasNext;
-		private K nextKey;
-		private V nextValue;
+		private EntryWrapper removeEntry;
 
-		private K removeKey;
+		public EntryIterator(boolean keysOnly) {
+			this.keysOnly = keysOnly;
+		}
+
+		private void fill() {
+			Reader r = borrow();
 
-		public EntryIterator() {
 			try {
-				rsEntry = stmtEntries.executeQuery();
+				PreparedStatement stmt = keysOnly ? r.stmtKeys : r.stmtEntries;
+				bindColumn(stmt, 1, lastKey);
+				stmt.setInt(2, batchSize);
 
-				hasNext = rsEntry.next();
-				if (hasNext) {
-					nextKey = Pickler.unpickleFromString(rsEntry.getString(KEY_COLUMN));
-					nextValue = Pickler.unpickleFromString(rsEntry.getString(VALUE_COLUMN));
+				page.clear();
+				position = 0;
+
+				ResultSet rs = stmt.executeQuery();
+				while (rs.next()) {
+					lastKey = column(rs, KEY_COLUMN);
+					page.add(new EntryWrapper(lastKey, keysOnly ? null : column(rs, VALUE_COLUMN)));
 				}
+				rs.close();
+				lastPage = page.size() < batchSize;
 
 			} catch (SQLException e) {
 				throw new RuntimeException(e);
+			} finally {
+				release(r);
 			}
 		}
 
 		@Override
 		public boolean hasNext() {
-			return hasNext;
+			if (position == page.size() && !lastPage) {
+				fill();
+			}
+			return position < page.size();
 		}
 
 		@Override
 		public Map.Entry<K, V> next() {
-			if (hasNext) {
-				Map.Entry<K, V> entry = new EntryWrapper(nextKey, nextValue);
-				removeKey = nextKey;
-
-				try {
-					hasNext = rsEntry.next();
-					if (hasNext) {
-						nextKey = Pickler.unpickleFromString(rsEntry.getString(KEY_COLUMN));
-						nextValue = Pickler.unpickleFromString(rsEntry.getString(VALUE_COLUMN));
-					}
-
-				} catch (SQLException e) {
-					throw new RuntimeException(e);
-				}
-
+			if (hasNext()) {
+				EntryWrapper entry = page.get(position);
+				page.set(position++, null);
+				removeEntry = entry;
 				return entry;
 			}
 			else {
@@ -263,9 +972,9 @@ public class SQLiteMap<K, V> extends AbstractMap<K, V> implements PickleMap<K, V
 
 		@Override
 		public void remove() {
-			if (null != removeKey) {
-				SQLiteMap.this.remove(removeKey);
-				removeKey = null;
+			if (null != removeEntry) {
+				SQLiteMap.this.remove(removeEntry.getKey());
+				removeEntry = null;
 			}
 			else {
 				throw new IllegalStateException();
@@ -274,30 +983,51 @@ public class SQLiteMap<K, V> extends AbstractMap<K, V> implements PickleMap<K, V
 
 	}
 
+	/**
+	 * Unpickles the key and value only when first asked for.
+	 * Entries from a key-only query look their value up.
+	 */
 	protected class EntryWrapper implements Map.Entry<K, V> {
 
+		protected byte[] keyColumn;
+		protected byte[] valueColumn;
+		protected boolean valueLoaded;
 		protected K key;
 		protected V value;
 
-		public EntryWrapper(K key, V value) {
-			this.key = key;
-			this.value = value;
+		public EntryWrapper(byte[] keyColumn, byte[] valueColumn) {
+			this.keyColumn = keyColumn;
+			this.valueColumn = valueColumn;
 		}
 
 		@Override
 		public K getKey() {
+			if (keyColumn != null) {
+				key = fromColumn(keyColumn);
+				keyColumn = null;
+			}
 			return key;
 		}
 
 		@Override
 		public V getValue() {
+			if (!valueLoaded) {
+				value = valueColumn != null
+						? SQLiteMap.this.<V>fromColumn(valueColumn)
+						: get(getKey());
+				valueColumn = null;
+				valueLoaded = true;
+			}
 			return value;
 		}
 
 		@Override
 		public V setValue(V value) {
+			V old = put(getKey(), value);
 			this.value = value;
-			return put(key, value);
+			this.valueColumn = null;
+			this.valueLoaded = true;
+			return old;
 		}
 
 	}
@@ -0,0 +1,161 @@
+package pickle.leveldb;
+
+import org.iq80.leveldb.CompressionType;
+import org.iq80.leveldb.Options;
+import org.iq80.leveldb.ReadOptions;
+import org.iq80.leveldb.WriteOptions;
+
+/**
+ * Engine settings for {@link LevelDBMap}, with setters that chain
+ * like LevelDB's own Options.  The defaults are what LevelDBMap
+ * has always used: a 1 MB block cache and a 1 MB write buffer,
+ * and LevelDB's own defaults for everything else.
+ *
+ * Bloom filters aren't configurable here because the LevelDB
+ * binding doesn't expose a filter policy.
+ *
+ * @author Michael Lieberman
+ */
+public class LevelDBConfig {
+
+	protected long cacheSize = 1000000L;
+	protected int writeBufferSize = 1000000;
+	protected int blockSize = 4 * 1024;
+	protected int blockRestartInterval = 16;
+	protected int maxOpenFiles = 1000;
+	protected CompressionType compressionType = CompressionType.SNAPPY;
+	protected boolean verifyChecksums = false;
+	protected boolean paranoidChecks = false;
+	protected boolean sync = false;
+	protected boolean fillCacheOnScan = true;
+
+	/**
+	 * Size of the block cache, in bytes.
+	 */
+	public LevelDBConfig cacheSize(long cacheSize) {
+		this.cacheSize = cacheSize;
+		return this;
+	}
+
+	public long cacheSize() {
+		return cacheSize;
+	}
+
+	/**
+	 * Size of the in-memory write buffer (memtable), in bytes.
+	 */
+	public LevelDBConfig writeBufferSize(int writeBufferSize) {
+		this.writeBufferSize = writeBufferSize;
+		return this;
+	}
+
+	public int writeBufferSize() {
+		return writeBufferSize;
+	}
+
+	/**
+	 * Approximate size of uncompressed table blocks, in bytes.
+	 */
+	public LevelDBConfig blockSize(int blockSize) {
+		this.blockSize = blockSize;
+		return this;
+	}
+
+	public int blockSize() {
+		return blockSize;
+	}
+
+	public LevelDBConfig blockRestartInterval(int blockRestartInterval) {
+		this.blockRestartInterval = blockRestartInterval;
+		return this;
+	}
+
+	public int blockRestartInterval() {
+		return blockRestartInterval;
+	}
+
+	public LevelDBConfig maxOpenFiles(int maxOpenFiles) {
+		this.maxOpenFiles = maxOpenFiles;
+		return this;
+	}
+
+	public int maxOpenFiles() {
+		return maxOpenFiles;
+	}
+
+	public LevelDBConfig compressionType(CompressionType compressionType) {
+		this.compressionType = compressionType;
+		return this;
+	}
+
+	public CompressionType compressionType() {
+		return compressionType;
+	}
+
+	public LevelDBConfig verifyChecksums(boolean verifyChecksums) {
+		this.verifyChecksums = verifyChecksums;
+		return this;
+	}
+
+	public boolean verifyChecksums() {
+		return verifyChecksums;
+	}
+
+	public LevelDBConfig paranoidChecks(boolean paranoidChecks) {
+		this.paranoidChecks = paranoidChecks;
+		return this;
+	}
+
+	public boolean paranoidChecks() {
+		return paranoidChecks;
+	}
+
+	/**
+	 * Whether every write waits for the log to be synced to disk.
+	 */
+	public LevelDBConfig sync(boolean sync) {
+		this.sync = sync;
+		return this;
+	}
+
+	public boolean sync() {
+		return sync;
+	}
+
+	/**
+	 * Whether full scans (iteration, recounting the size)
+	 * load the blocks they read into the block cache.
+	 */
+	public LevelDBConfig fillCacheOnScan(boolean fillCacheOnScan) {
+		this.fillCacheOnScan = fillCacheOnScan;
+		return this;
+	}
+
+	public boolean fillCacheOnScan() {
+		return fillCacheOnScan;
+	}
+
+
+	public Options toOptions() {
+		Options options = new Options();
+		options.createIfMissing(true);
+		options.cacheSize(cacheSize);
+		options.writeBufferSize(writeBufferSize);
+		options.blockSize(blockSize);
+		options.blockRestartInterval(blockRestartInterval);
+		options.maxOpenFiles(maxOpenFiles);
+		options.compressionType(compressionType);
+		options.verifyChecksums(verifyChecksums);
+		options.paranoidChecks(paranoidChecks);
+		return options;
+	}
+
+	public WriteOptions toWriteOptions() {
+		return new WriteOptions().sync(sync);
+	}
+
+	public ReadOptions toScanOptions() {
+		return new ReadOptions().fillCache(fillCacheOnScan).verifyChecksums(verifyChecksums);
+	}
+
+}
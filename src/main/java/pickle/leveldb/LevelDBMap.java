@@ -4,38 +4,100 @@ import java.io.File;
 import java.io.IOException;
 import java.util.AbstractMap;
 import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.commons.io.FileUtils;
 import org.fusesource.leveldbjni.JniDBFactory;
 import org.iq80.leveldb.DB;
 import org.iq80.leveldb.DBIterator;
-import org.iq80.leveldb.Options;
+import org.iq80.leveldb.ReadOptions;
 import org.iq80.leveldb.WriteBatch;
+import org.iq80.leveldb.WriteOptions;
 
+import pickle.Bytes;
+import pickle.ClassRegistry;
 import pickle.KV;
 import pickle.PickleMap;
 import pickle.KV.Type;
 
 /**
+ * The size is kept in memory and only written to the SIZE key
+ * by flush() and close().  While the stored size is behind, a
+ * SIZESTALE marker is kept in the database, so after a crash
+ * the size gets recounted.
+ *
+ * Writes that count lock their keys, striped by the encoded
+ * bytes, while they check whether each key is there and write
+ * it, so concurrent writes of the same key count it once.
+ *
  * @author Michael Lieberman
  */
 public class LevelDBMap<K, V> extends AbstractMap<K, V> implements PickleMap<K, V> {
 
 	protected static final String SIZESTR = "size";
 	protected static final byte[] SIZE = KV.toBytes(Type.META, SIZESTR);
+	protected static final String CLASSESSTR = "classes";
+	protected static final byte[] CLASSES = KV.toBytes(Type.META, CLASSESSTR);
+	protected static final String SIZESTALESTR = "sizeStale";
+	protected static final byte[] SIZESTALE = KV.toBytes(Type.META, SIZESTALESTR);
+	protected static final String KEYENCODINGSTR = "keyEncoding";
+	protected static final byte[] KEYENCODING = KV.toBytes(Type.META, KEYENCODINGSTR);
+	protected static final String ORDERED = "ordered";
+
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+
+	/** Number of locks the keys are striped over. */
+	protected static final int KEY_LOCKS = 64;
 
 	protected File dbDir;
+	protected LevelDBConfig config;
+	protected WriteOptions writeOptions;
+	protected ReadOptions scanOptions;
 	protected DB db;
+	protected ClassRegistry registry;
+	protected final AtomicInteger size = new AtomicInteger();
+	/** The in-memory size is unknown (blind writes, or a crash) until recounted. */
+	protected volatile boolean sizeStale;
+	/** The stored size is behind and the SIZESTALE marker is set. */
+	protected volatile boolean sizeDirty;
+	/** Held shared by writers, exclusively while storing or recounting the size. */
+	protected final ReadWriteLock sizeLock = new ReentrantReadWriteLock();
+	protected final Lock[] keyLocks = newKeyLocks();
+	protected int batchSize = DEFAULT_BATCH_SIZE;
 
 	public LevelDBMap(String dbDir) throws IOException {
 		this(dbDir, false);
 	}
 
 	public LevelDBMap(String dbDir, boolean clear) throws IOException {
+		this(dbDir, clear, new LevelDBConfig());
+	}
+
+	public LevelDBMap(String dbDir, LevelDBConfig config) throws IOException {
+		this(dbDir, false, config);
+	}
+
+	public LevelDBMap(String dbDir, boolean clear, LevelDBConfig config) throws IOException {
 		this.dbDir = new File(dbDir);
+		this.config = config;
+		this.writeOptions = config.toWriteOptions();
+		this.scanOptions = config.toScanOptions();
 		reopen(clear);
 	}
 
@@ -46,16 +108,72 @@ public class LevelDBMap<K, V> extends AbstractMap<K, V> implements PickleMap<K,
 			FileUtils.deleteDirectory(dbDir);
 		}
 
-		Options options = new Options();
-		options.createIfMissing(true);
-		options.cacheSize(1000000L);
-		options.writeBufferSize(1000000);
-		this.db = JniDBFactory.factory.open(dbDir, options);
+		this.db = JniDBFactory.factory.open(dbDir, config.toOptions());
 
 		// Initialize size.
-		if (db.get(SIZE) == null) {
+		byte[] stored = db.get(SIZE);
+		if (stored == null) {
 			setSize(0);
 		}
+		size.set(stored != null ? KV.<Integer>fromBytes(stored) : 0);
+
+		// Not stored cleanly last time, e.g. a crash or blind writes.
+		this.sizeDirty = db.get(SIZESTALE) != null;
+		this.sizeStale = sizeDirty;
+
+		this.registry = loadRegistry();
+		checkKeyOrder();
+	}
+
+	/**
+	 * Whether keys are stored in key order, rather than as pickles.
+	 */
+	protected boolean orderedKeys() {
+		return false;
+	}
+
+	/**
+	 * Refuses a database whose keys were written the other way,
+	 * and marks an empty one as written with ordered keys.
+	 */
+	protected void checkKeyOrder() {
+		boolean ordered = db.get(KEYENCODING) != null;
+
+		if (ordered && !orderedKeys()) {
+			close();
+			throw new IllegalStateException(dbDir + " was written with ordered keys");
+		}
+
+		if (!ordered && orderedKeys()) {
+			if (getSize() > 0) {
+				close();
+				throw new IllegalStateException(dbDir + " was written with unordered keys");
+			}
+
+			db.put(KEYENCODING, KV.toBytes(Type.DATA, ORDERED), writeOptions);
+		}
+	}
+
+	protected ClassRegistry loadRegistry() {
+		byte[] classes = db.get(CLASSES);
+
+		if (classes == null) {
+			if (getSize() > 0) {
+				// Written before class registries; keep writing class names.
+				return ClassRegistry.NONE;
+			}
+
+			db.put(CLASSES, KV.toBytes(Type.DATA, new TreeMap<Integer, String>()), writeOptions);
+		}
+
+		ClassRegistry.Store store = new ClassRegistry.Store() {
+			@Override
+			public void store(int id, String className) {
+				db.put(CLASSES, KV.toBytes(Type.DATA, registry.getClasses()), writeOptions);
+			}
+		};
+
+		return new ClassRegistry(classes != null ? KV.<Map<Integer, String>>fromBytes(classes) : null, store);
 	}
 
 	@Override
@@ -65,8 +183,46 @@ public class LevelDBMap<K, V> extends AbstractMap<K, V> implements PickleMap<K,
 
 	@Override
 	public V get(Object key) {
-		byte[] val = db.get(KV.toBytes(Type.DATA, key));
-		return val != null ? KV.<V>fromBytes(val) : null;
+		byte[] val = db.get(encodeKey(key));
+		return val != null ? KV.<V>fromBytes(val, registry) : null;
+	}
+
+	/**
+	 * Sorts the encoded keys and finds them all
+	 * with one forward pass of iterator seeks.
+	 */
+	@Override
+	public Map<K, V> getMany(Collection<? extends K> keys) {
+		List<EncodedKey> encoded = new ArrayList<EncodedKey>(keys.size());
+		for (K key : keys) {
+			encoded.add(new EncodedKey(key));
+		}
+		Collections.sort(encoded);
+
+		Map<K, V> found = new HashMap<K, V>();
+
+		try {
+			DBIterator iterator = db.iterator();
+
+			for (EncodedKey key : encoded) {
+				iterator.seek(key.bytes);
+				if (!iterator.hasNext()) {
+					break;
+				}
+
+				Map.Entry<byte[], byte[]> entry = iterator.peekNext();
+				if (Arrays.equals(entry.getKey(), key.bytes)) {
+					found.put(key.key, KV.<V>fromBytes(entry.getValue(), registry));
+				}
+			}
+
+			iterator.close();
+
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		return found;
 	}
 
 	@Override
@@ -75,49 +231,178 @@ public class LevelDBMap<K, V> extends AbstractMap<K, V> implements PickleMap<K,
 	}
 
 	public V put(Type keyType, K key, V value) {
+		byte[] bytes = encodeKey(keyType, key);
+		byte[] val = KV.toBytes(Type.DATA, value, registry);
+		Lock lock = keyLock(bytes);
+
+		beginWrite();
+		lock.lock();
+
 		try {
-			V old = get(key);
+			byte[] old = db.get(bytes);
 
-			WriteBatch batch = db.createWriteBatch();
-			batch.put(KV.toBytes(keyType, key), KV.toBytes(Type.DATA, value));
+			db.put(bytes, val, writeOptions);
 
-			// Update size.
-			if (old == null) {
-				setSize(getSize() + 1, batch);
+			// Only data keys are counted, as by recountSize().
+			if (old == null && keyType == Type.DATA) {
+				size.incrementAndGet();
 			}
 
-			db.write(batch);
-			batch.close();
+			return old != null ? KV.<V>fromBytes(old, registry) : null;
 
-			return old;
+		} finally {
+			lock.unlock();
+			endWrite();
+		}
+	}
 
-		} catch (IOException e) {
-			throw new RuntimeException(e);
+	@Override
+	public void set(K key, V value) {
+		beginWrite();
+
+		try {
+			// Can't tell whether this adds a key.
+			sizeStale = true;
+
+			db.put(encodeKey(key), KV.toBytes(Type.DATA, value, registry), writeOptions);
+
+		} finally {
+			endWrite();
 		}
 	}
 
 	@Override
 	public V remove(Object key) {
+		byte[] bytes = encodeKey(key);
+		Lock lock = keyLock(bytes);
+
+		beginWrite();
+		lock.lock();
+
 		try {
-			V old = get(key);
+			byte[] old = db.get(bytes);
 
 			if (old != null) {
-				WriteBatch batch = db.createWriteBatch();
+				db.delete(bytes, writeOptions);
+				size.decrementAndGet();
+			}
 
-				delete(key, batch);
-				setSize(getSize() - 1, batch);
+			return old != null ? KV.<V>fromBytes(old, registry) : null;
 
-				db.write(batch);
-				batch.close();
+		} finally {
+			lock.unlock();
+			endWrite();
+		}
+	}
+
+	/**
+	 * Writes the entries in one WriteBatch per chunk of batchSize entries.
+	 */
+	@Override
+	public void putAll(Map<? extends K, ? extends V> m) {
+		beginWrite();
+
+		try {
+			Iterator<? extends Map.Entry<? extends K, ? extends V>> i = m.entrySet().iterator();
+
+			while (i.hasNext()) {
+				List<byte[]> keys = new ArrayList<byte[]>();
+				List<byte[]> vals = new ArrayList<byte[]>();
+
+				for (int n = 0; n < batchSize && i.hasNext(); n++) {
+					Map.Entry<? extends K, ? extends V> entry = i.next();
+					keys.add(encodeKey(entry.getKey()));
+					vals.add(KV.toBytes(Type.DATA, entry.getValue(), registry));
+				}
+
+				List<Lock> locks = lockKeys(keys);
+
+				try {
+					WriteBatch batch = db.createWriteBatch();
+					int added = 0;
+
+					for (int n = 0; n < keys.size(); n++) {
+						if (!sizeStale && db.get(keys.get(n)) == null) {
+							added++;
+						}
+
+						batch.put(keys.get(n), vals.get(n));
+					}
+
+					db.write(batch, writeOptions);
+					batch.close();
+
+					size.addAndGet(added);
+
+				} finally {
+					unlock(locks);
+				}
 			}
 
-			return old;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			endWrite();
+		}
+	}
+
+	/**
+	 * Deletes the keys in one WriteBatch per chunk of batchSize keys.
+	 */
+	@Override
+	public void removeAll(Collection<?> keys) {
+		beginWrite();
+
+		try {
+			Iterator<?> i = keys.iterator();
+
+			while (i.hasNext()) {
+				// The batch isn't written yet, so a repeated key would count twice.
+				Set<byte[]> batchKeys = new TreeSet<byte[]>(Bytes.COMPARATOR);
+
+				for (int n = 0; n < batchSize && i.hasNext(); n++) {
+					batchKeys.add(encodeKey(i.next()));
+				}
+
+				List<Lock> locks = lockKeys(batchKeys);
+
+				try {
+					WriteBatch batch = db.createWriteBatch();
+					int removed = 0;
+
+					for (byte[] key : batchKeys) {
+						if (!sizeStale && db.get(key) != null) {
+							removed++;
+						}
+
+						batch.delete(key);
+					}
+
+					db.write(batch, writeOptions);
+					batch.close();
+
+					size.addAndGet(-removed);
+
+				} finally {
+					unlock(locks);
+				}
+			}
 
 		} catch (IOException e) {
 			throw new RuntimeException(e);
+		} finally {
+			endWrite();
 		}
 	}
 
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
 	@Override
 	public void clear() {
 		try {
@@ -129,13 +414,14 @@ public class LevelDBMap<K, V> extends AbstractMap<K, V> implements PickleMap<K,
 
 	@Override
 	public void flush() {
-		// Nothing to do.
+		storeSize();
 	}
 
 	@Override
 	public void close() {
 		try {
 			if (db != null) {
+				storeSize();
 				db.close();
 				db = null;
 			}
@@ -150,9 +436,144 @@ public class LevelDBMap<K, V> extends AbstractMap<K, V> implements PickleMap<K,
 		return new EntrySet();
 	}
 
+	@Override
+	public Set<K> keySet() {
+		return new KeySet();
+	}
+
 
 	protected int getSize() {
-		return KV.fromBytes(db.get(SIZE));
+		if (sizeStale) {
+			recountSize();
+		}
+
+		return size.get();
+	}
+
+	/**
+	 * Called before every write: sets the SIZESTALE marker
+	 * the first time the size changes after being stored.
+	 */
+	protected void beginWrite() {
+		sizeLock.readLock().lock();
+
+		try {
+			if (!sizeDirty) {
+				synchronized (this) {
+					if (!sizeDirty) {
+						db.put(SIZESTALE, KV.toBytes(Type.DATA, true), writeOptions);
+						sizeDirty = true;
+					}
+				}
+			}
+
+		} catch (RuntimeException e) {
+			sizeLock.readLock().unlock();
+			throw e;
+		}
+	}
+
+	protected void endWrite() {
+		sizeLock.readLock().unlock();
+	}
+
+	protected static Lock[] newKeyLocks() {
+		Lock[] locks = new Lock[KEY_LOCKS];
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new ReentrantLock();
+		}
+		return locks;
+	}
+
+	protected int keyStripe(byte[] key) {
+		return (Arrays.hashCode(key) & Integer.MAX_VALUE) % keyLocks.length;
+	}
+
+	protected Lock keyLock(byte[] key) {
+		return keyLocks[keyStripe(key)];
+	}
+
+	/**
+	 * Locks the stripes of all the keys, in stripe
+	 * order so that batches can't deadlock.
+	 */
+	protected List<Lock> lockKeys(Collection<byte[]> keys) {
+		boolean[] stripes = new boolean[keyLocks.length];
+		for (byte[] key : keys) {
+			stripes[keyStripe(key)] = true;
+		}
+
+		List<Lock> locks = new ArrayList<Lock>();
+		for (int i = 0; i < stripes.length; i++) {
+			if (stripes[i]) {
+				keyLocks[i].lock();
+				locks.add(keyLocks[i]);
+			}
+		}
+		return locks;
+	}
+
+	protected void unlock(List<Lock> locks) {
+		for (Lock lock : locks) {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stores the in-memory size and clears the SIZESTALE marker,
+	 * unless the size needs a recount first.
+	 */
+	protected void storeSize() {
+		sizeLock.writeLock().lock();
+
+		try {
+			if (sizeDirty && !sizeStale) {
+				WriteBatch batch = db.createWriteBatch();
+				setSize(size.get(), batch);
+				batch.delete(SIZESTALE);
+				db.write(batch, writeOptions);
+				batch.close();
+
+				sizeDirty = false;
+			}
+
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			sizeLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Counts the data keys, after blind writes or a crash.
+	 */
+	protected void recountSize() {
+		sizeLock.writeLock().lock();
+
+		try {
+			if (!sizeStale) {
+				return;
+			}
+
+			int count = 0;
+
+			DBIterator iterator = db.iterator(scanOptions);
+			iterator.seekToFirst();
+			while (iterator.hasNext() && KV.typeOf(iterator.next().getKey()) == Type.DATA) {
+				count++;
+			}
+			iterator.close();
+
+			size.set(count);
+			sizeStale = false;
+
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			sizeLock.writeLock().unlock();
+		}
+
+		storeSize();
 	}
 
 	protected void setSize(int size) {
@@ -166,22 +587,56 @@ public class LevelDBMap<K, V> extends AbstractMap<K, V> implements PickleMap<K,
 			batch.put(SIZE, val);
 		}
 		else {
-			db.put(SIZE, val);
+			db.put(SIZE, val, writeOptions);
 		}
 	}
 
+	protected byte[] encodeKey(Object key) {
+		return encodeKey(Type.DATA, key);
+	}
+
+	/**
+	 * Subclasses can store keys in another encoding,
+	 * as long as it keeps the leading type byte.
+	 */
+	protected byte[] encodeKey(Type type, Object key) {
+		return KV.toBytes(type, key, registry);
+	}
+
+	protected K decodeKey(byte[] bytes) {
+		return KV.fromBytes(bytes, registry);
+	}
+
 	protected void deleteKey(Object key) {
 		delete(key, null);
 	}
 
 	protected void delete(Object key, WriteBatch batch) {
-		byte[] bytes = KV.toBytes(Type.DATA, key);
+		byte[] bytes = encodeKey(key);
 		if (batch != null) {
 			batch.delete(bytes);
 		}
 		else {
-			db.delete(bytes);
+			db.delete(bytes, writeOptions);
+		}
+	}
+
+
+	protected class EncodedKey implements Comparable<EncodedKey> {
+
+		protected K key;
+		protected byte[] bytes;
+
+		public EncodedKey(K key) {
+			this.key = key;
+			this.bytes = encodeKey(key);
+		}
+
+		@Override
+		public int compareTo(EncodedKey other) {
+			return Bytes.compare(bytes, other.bytes);
 		}
+
 	}
 
 
@@ -206,51 +661,120 @@ public class LevelDBMap<K, V> extends AbstractMap<K, V> implements PickleMap<K,
 		protected Map.Entry<K, V> curEntry;
 
 		public EntryIterator() {
-			iterator = db.iterator();
+			iterator = db.iterator(scanOptions);
+			iterator.seekToFirst();
 		}
 
 		@Override
 		public boolean hasNext() {
-			return iterator.hasNext();
+			// Data keys sort before metadata keys, so stop at the first of those.
+			return iterator.hasNext() && KV.typeOf(iterator.peekNext().getKey()) == Type.DATA;
 		}
 
 		@Override
 		public Map.Entry<K, V> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+
 			curEntry = new EntryWrapper(iterator.next());
 			return curEntry;
 		}
 
 		@Override
 		public void remove() {
-			deleteKey(curEntry.getKey());
+			LevelDBMap.this.remove(curEntry.getKey());
 		}
 
 	}
 
+	/**
+	 * Walks the keys without decoding any values.
+	 */
+	protected class KeySet extends AbstractSet<K> {
+
+		@Override
+		public Iterator<K> iterator() {
+			return new KeyIterator();
+		}
+
+		@Override
+		public int size() {
+			return getSize();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return containsKey(o);
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			return LevelDBMap.this.remove(o) != null;
+		}
+
+	}
+
+
+	protected class KeyIterator implements Iterator<K> {
+
+		protected EntryIterator entries = new EntryIterator();
+
+		@Override
+		public boolean hasNext() {
+			return entries.hasNext();
+		}
+
+		@Override
+		public K next() {
+			return entries.next().getKey();
+		}
+
+		@Override
+		public void remove() {
+			entries.remove();
+		}
+
+	}
+
+	/**
+	 * Decodes the key and value only when first asked for.
+	 */
 	protected class EntryWrapper implements Map.Entry<K, V> {
 
+		protected byte[] keyBytes;
+		protected byte[] valueBytes;
 		protected K key;
 		protected V value;
 
 		public EntryWrapper(Map.Entry<byte[], byte[]> entry) {
-			this.key = KV.fromBytes(entry.getKey());
-			this.value = KV.fromBytes(entry.getValue());
+			this.keyBytes = entry.getKey();
+			this.valueBytes = entry.getValue();
 		}
 
 		@Override
 		public K getKey() {
+			if (keyBytes != null) {
+				key = decodeKey(keyBytes);
+				keyBytes = null;
+			}
 			return key;
 		}
 
 		@Override
 		public V getValue() {
+			if (valueBytes != null) {
+				value = KV.fromBytes(valueBytes, registry);
+				valueBytes = null;
+			}
 			return value;
 		}
 
 		@Override
 		public V setValue(V value) {
-			V old = put(key, value);
+			V old = put(getKey(), value);
 			this.value = value;
+			this.valueBytes = null;
 			return old;
 		}
 
@@ -0,0 +1,929 @@
+package pickle.leveldb;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+
+import org.iq80.leveldb.DBIterator;
+
+import pickle.Bytes;
+import pickle.KV;
+import pickle.NavigablePickleMap;
+import pickle.OrderedCodec;
+import pickle.KV.Type;
+
+/**
+ * A LevelDBMap whose keys are stored with {@link OrderedCodec},
+ * so LevelDB keeps them in key order and range queries are
+ * iterator seeks and bounded scans rather than full scans.
+ * Keys are limited to the types OrderedCodec supports, and
+ * ordered by its {@link OrderedCodec#COMPARATOR}.
+ *
+ * Databases written by a plain LevelDBMap can't be opened
+ * with this class, and vice versa.
+ *
+ * @author Michael Lieberman
+ */
+public class NavigableLevelDBMap<K, V> extends LevelDBMap<K, V> implements NavigablePickleMap<K, V> {
+
+	/** Sorts after every data key. */
+	protected static final byte[] DATA_END = new byte[] {(byte) Type.META.ordinal()};
+
+	protected View root;
+
+	public NavigableLevelDBMap(String dbDir) throws IOException {
+		this(dbDir, false);
+	}
+
+	public NavigableLevelDBMap(String dbDir, boolean clear) throws IOException {
+		this(dbDir, clear, new LevelDBConfig());
+	}
+
+	public NavigableLevelDBMap(String dbDir, LevelDBConfig config) throws IOException {
+		this(dbDir, false, config);
+	}
+
+	public NavigableLevelDBMap(String dbDir, boolean clear, LevelDBConfig config) throws IOException {
+		super(dbDir, clear, config);
+		this.root = new View(null, null, false);
+	}
+
+	@Override
+	protected boolean orderedKeys() {
+		return true;
+	}
+
+	@Override
+	protected byte[] encodeKey(Type type, Object key) {
+		if (type != Type.DATA) {
+			return super.encodeKey(type, key);
+		}
+
+		return OrderedCodec.encode(type.ordinal(), key);
+	}
+
+	@Override
+	protected K decodeKey(byte[] bytes) {
+		return OrderedCodec.decode(bytes, 1, bytes.length - 1);
+	}
+
+	@Override
+	public Comparator<? super K> comparator() {
+		return root.comparator();
+	}
+
+	@Override
+	public K firstKey() {
+		return root.firstKey();
+	}
+
+	@Override
+	public K lastKey() {
+		return root.lastKey();
+	}
+
+	@Override
+	public Map.Entry<K, V> firstEntry() {
+		return root.firstEntry();
+	}
+
+	@Override
+	public Map.Entry<K, V> lastEntry() {
+		return root.lastEntry();
+	}
+
+	@Override
+	public Map.Entry<K, V> pollFirstEntry() {
+		return root.pollFirstEntry();
+	}
+
+	@Override
+	public Map.Entry<K, V> pollLastEntry() {
+		return root.pollLastEntry();
+	}
+
+	@Override
+	public Map.Entry<K, V> lowerEntry(K key) {
+		return root.lowerEntry(key);
+	}
+
+	@Override
+	public K lowerKey(K key) {
+		return root.lowerKey(key);
+	}
+
+	@Override
+	public Map.Entry<K, V> floorEntry(K key) {
+		return root.floorEntry(key);
+	}
+
+	@Override
+	public K floorKey(K key) {
+		return root.floorKey(key);
+	}
+
+	@Override
+	public Map.Entry<K, V> ceilingEntry(K key) {
+		return root.ceilingEntry(key);
+	}
+
+	@Override
+	public K ceilingKey(K key) {
+		return root.ceilingKey(key);
+	}
+
+	@Override
+	public Map.Entry<K, V> higherEntry(K key) {
+		return root.higherEntry(key);
+	}
+
+	@Override
+	public K higherKey(K key) {
+		return root.higherKey(key);
+	}
+
+	@Override
+	public NavigableMap<K, V> descendingMap() {
+		return root.descendingMap();
+	}
+
+	@Override
+	public NavigableSet<K> navigableKeySet() {
+		return root.navigableKeySet();
+	}
+
+	@Override
+	public NavigableSet<K> descendingKeySet() {
+		return root.descendingKeySet();
+	}
+
+	@Override
+	public Set<K> keySet() {
+		return root.navigableKeySet();
+	}
+
+	@Override
+	public NavigableMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+		return root.subMap(fromKey, fromInclusive, toKey, toInclusive);
+	}
+
+	@Override
+	public NavigableMap<K, V> headMap(K toKey, boolean inclusive) {
+		return root.headMap(toKey, inclusive);
+	}
+
+	@Override
+	public NavigableMap<K, V> tailMap(K fromKey, boolean inclusive) {
+		return root.tailMap(fromKey, inclusive);
+	}
+
+	@Override
+	public SortedMap<K, V> subMap(K fromKey, K toKey) {
+		return root.subMap(fromKey, toKey);
+	}
+
+	@Override
+	public SortedMap<K, V> headMap(K toKey) {
+		return root.headMap(toKey);
+	}
+
+	@Override
+	public SortedMap<K, V> tailMap(K fromKey) {
+		return root.tailMap(fromKey);
+	}
+
+
+	/**
+	 * Positions the iterator at the lowest data key within
+	 * the bounds and returns that entry, or returns null.
+	 */
+	protected Map.Entry<byte[], byte[]> seekLowest(DBIterator iterator, Bound lo, Bound hi) {
+		if (lo == null) {
+			iterator.seekToFirst();
+		}
+		else {
+			iterator.seek(lo.bytes);
+			if (!lo.inclusive && iterator.hasNext() && Arrays.equals(iterator.peekNext().getKey(), lo.bytes)) {
+				iterator.next();
+			}
+		}
+
+		if (!iterator.hasNext()) {
+			return null;
+		}
+
+		Map.Entry<byte[], byte[]> entry = iterator.peekNext();
+		return isData(entry.getKey()) && belowHi(entry.getKey(), hi) ? entry : null;
+	}
+
+	/**
+	 * Positions the iterator at the highest data key within
+	 * the bounds and returns that entry, or returns null.
+	 * first is the lowest key in the iterator's snapshot.
+	 */
+	protected Map.Entry<byte[], byte[]> seekHighest(DBIterator iterator, byte[] first, Bound lo, Bound hi) {
+		if (first == null) {
+			return null;
+		}
+
+		iterator.seek(hi != null ? hi.bytes : DATA_END);
+
+		boolean atHi = hi != null && hi.inclusive && iterator.hasNext()
+				&& Arrays.equals(iterator.peekNext().getKey(), hi.bytes);
+
+		if (!atHi) {
+			if (!iterator.hasNext()) {
+				iterator.seekToLast();
+			}
+			else if (!stepBack(iterator, first)) {
+				return null;
+			}
+		}
+
+		Map.Entry<byte[], byte[]> entry = iterator.peekNext();
+		return isData(entry.getKey()) && aboveLo(entry.getKey(), lo) ? entry : null;
+	}
+
+	/**
+	 * Moves the iterator back one entry, unless it's at the
+	 * first one.  The JNI iterator crashes the JVM if asked
+	 * to go back from the first entry, hence the check.
+	 */
+	protected boolean stepBack(DBIterator iterator, byte[] first) {
+		if (Arrays.equals(iterator.peekNext().getKey(), first)) {
+			return false;
+		}
+
+		iterator.prev();
+		return true;
+	}
+
+	protected byte[] firstKey(DBIterator iterator) {
+		iterator.seekToFirst();
+		return iterator.hasNext() ? iterator.peekNext().getKey() : null;
+	}
+
+	protected Map.Entry<K, V> lowest(Bound lo, Bound hi) {
+		DBIterator iterator = db.iterator();
+
+		try {
+			Map.Entry<byte[], byte[]> entry = seekLowest(iterator, lo, hi);
+			return entry != null ? new EntryWrapper(entry) : null;
+
+		} finally {
+			close(iterator);
+		}
+	}
+
+	protected Map.Entry<K, V> highest(Bound lo, Bound hi) {
+		DBIterator iterator = db.iterator();
+
+		try {
+			Map.Entry<byte[], byte[]> entry = seekHighest(iterator, firstKey(iterator), lo, hi);
+			return entry != null ? new EntryWrapper(entry) : null;
+
+		} finally {
+			close(iterator);
+		}
+	}
+
+	protected void close(DBIterator iterator) {
+		try {
+			iterator.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	protected static boolean isData(byte[] key) {
+		return KV.typeOf(key) == Type.DATA;
+	}
+
+	protected static boolean aboveLo(byte[] key, Bound lo) {
+		if (lo == null) {
+			return true;
+		}
+
+		int cmp = Bytes.compare(key, lo.bytes);
+		return cmp > 0 || (cmp == 0 && lo.inclusive);
+	}
+
+	protected static boolean belowHi(byte[] key, Bound hi) {
+		if (hi == null) {
+			return true;
+		}
+
+		int cmp = Bytes.compare(key, hi.bytes);
+		return cmp < 0 || (cmp == 0 && hi.inclusive);
+	}
+
+	protected static <T> T key(Map.Entry<T, ?> entry) {
+		return entry != null ? entry.getKey() : null;
+	}
+
+
+	/**
+	 * An encoded range endpoint.
+	 */
+	protected static class Bound {
+
+		protected final byte[] bytes;
+		protected final boolean inclusive;
+
+		public Bound(byte[] bytes, boolean inclusive) {
+			this.bytes = bytes;
+			this.inclusive = inclusive;
+		}
+
+	}
+
+
+	/**
+	 * The entries between lo and hi (null for unbounded), in key
+	 * order or reversed.  Bounds are always in key order, so a
+	 * descending view's lo is its last key.
+	 */
+	protected class View extends AbstractMap<K, V> implements NavigableMap<K, V> {
+
+		protected final Bound lo;
+		protected final Bound hi;
+		protected final boolean descending;
+
+		public View(Bound lo, Bound hi, boolean descending) {
+			this.lo = lo;
+			this.hi = hi;
+			this.descending = descending;
+		}
+
+		protected Bound bound(Object key, boolean inclusive) {
+			return new Bound(encodeKey(key), inclusive);
+		}
+
+		protected boolean inRange(byte[] key) {
+			return aboveLo(key, lo) && belowHi(key, hi);
+		}
+
+		/** The tighter of the view's lower bound and b. */
+		protected Bound maxLo(Bound b) {
+			if (lo == null) {
+				return b;
+			}
+
+			int cmp = Bytes.compare(b.bytes, lo.bytes);
+			return cmp > 0 || (cmp == 0 && !b.inclusive) ? b : lo;
+		}
+
+		/** The tighter of the view's upper bound and b. */
+		protected Bound minHi(Bound b) {
+			if (hi == null) {
+				return b;
+			}
+
+			int cmp = Bytes.compare(b.bytes, hi.bytes);
+			return cmp < 0 || (cmp == 0 && !b.inclusive) ? b : hi;
+		}
+
+		/** Entry at or after key, in key order. */
+		protected Map.Entry<K, V> ceiling(K key, boolean inclusive) {
+			return lowest(maxLo(bound(key, inclusive)), hi);
+		}
+
+		/** Entry at or before key, in key order. */
+		protected Map.Entry<K, V> floor(K key, boolean inclusive) {
+			return highest(lo, minHi(bound(key, inclusive)));
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return get(key) != null;
+		}
+
+		@Override
+		public V get(Object key) {
+			return inRange(encodeKey(key)) ? NavigableLevelDBMap.this.get(key) : null;
+		}
+
+		@Override
+		public V put(K key, V value) {
+			if (!inRange(encodeKey(key))) {
+				throw new IllegalArgumentException("Key out of range");
+			}
+
+			return NavigableLevelDBMap.this.put(key, value);
+		}
+
+		@Override
+		public V remove(Object key) {
+			return inRange(encodeKey(key)) ? NavigableLevelDBMap.this.remove(key) : null;
+		}
+
+		@Override
+		public int size() {
+			if (lo == null && hi == null) {
+				return NavigableLevelDBMap.this.size();
+			}
+
+			int count = 0;
+			DBIterator iterator = db.iterator(scanOptions);
+
+			try {
+				seekLowest(iterator, lo, hi);
+				while (iterator.hasNext()) {
+					byte[] key = iterator.next().getKey();
+					if (!isData(key) || !belowHi(key, hi)) {
+						break;
+					}
+					count++;
+				}
+
+			} finally {
+				close(iterator);
+			}
+
+			return count;
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return lowest(lo, hi) == null;
+		}
+
+		@Override
+		public void clear() {
+			if (lo == null && hi == null) {
+				NavigableLevelDBMap.this.clear();
+			}
+			else {
+				super.clear();
+			}
+		}
+
+		@Override
+		public Set<Map.Entry<K, V>> entrySet() {
+			return new AbstractSet<Map.Entry<K, V>>() {
+				@Override
+				public Iterator<Map.Entry<K, V>> iterator() {
+					return descending ? new DescendingIterator(lo, hi) : new AscendingIterator(lo, hi);
+				}
+
+				@Override
+				public int size() {
+					return View.this.size();
+				}
+			};
+		}
+
+		@Override
+		public Comparator<? super K> comparator() {
+			return descending ? Collections.reverseOrder(OrderedCodec.COMPARATOR) : OrderedCodec.COMPARATOR;
+		}
+
+		@Override
+		public Map.Entry<K, V> firstEntry() {
+			return descending ? highest(lo, hi) : lowest(lo, hi);
+		}
+
+		@Override
+		public Map.Entry<K, V> lastEntry() {
+			return descending ? lowest(lo, hi) : highest(lo, hi);
+		}
+
+		@Override
+		public K firstKey() {
+			return existing(firstEntry());
+		}
+
+		@Override
+		public K lastKey() {
+			return existing(lastEntry());
+		}
+
+		protected K existing(Map.Entry<K, V> entry) {
+			if (entry == null) {
+				throw new NoSuchElementException();
+			}
+			return entry.getKey();
+		}
+
+		@Override
+		public Map.Entry<K, V> pollFirstEntry() {
+			return poll(firstEntry());
+		}
+
+		@Override
+		public Map.Entry<K, V> pollLastEntry() {
+			return poll(lastEntry());
+		}
+
+		protected Map.Entry<K, V> poll(Map.Entry<K, V> entry) {
+			if (entry != null) {
+				NavigableLevelDBMap.this.remove(entry.getKey());
+			}
+			return entry;
+		}
+
+		@Override
+		public Map.Entry<K, V> lowerEntry(K key) {
+			return descending ? ceiling(key, false) : floor(key, false);
+		}
+
+		@Override
+		public K lowerKey(K key) {
+			return key(lowerEntry(key));
+		}
+
+		@Override
+		public Map.Entry<K, V> floorEntry(K key) {
+			return descending ? ceiling(key, true) : floor(key, true);
+		}
+
+		@Override
+		public K floorKey(K key) {
+			return key(floorEntry(key));
+		}
+
+		@Override
+		public Map.Entry<K, V> ceilingEntry(K key) {
+			return descending ? floor(key, true) : ceiling(key, true);
+		}
+
+		@Override
+		public K ceilingKey(K key) {
+			return key(ceilingEntry(key));
+		}
+
+		@Override
+		public Map.Entry<K, V> higherEntry(K key) {
+			return descending ? floor(key, false) : ceiling(key, false);
+		}
+
+		@Override
+		public K higherKey(K key) {
+			return key(higherEntry(key));
+		}
+
+		@Override
+		public NavigableMap<K, V> descendingMap() {
+			return new View(lo, hi, !descending);
+		}
+
+		@Override
+		public NavigableSet<K> navigableKeySet() {
+			return new NavigableKeySet(this);
+		}
+
+		@Override
+		public NavigableSet<K> descendingKeySet() {
+			return descendingMap().navigableKeySet();
+		}
+
+		@Override
+		public Set<K> keySet() {
+			return navigableKeySet();
+		}
+
+		@Override
+		public NavigableMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+			Bound from = bound(fromKey, fromInclusive);
+			Bound to = bound(toKey, toInclusive);
+
+			if (descending ? Bytes.compare(from.bytes, to.bytes) < 0 : Bytes.compare(from.bytes, to.bytes) > 0) {
+				throw new IllegalArgumentException("fromKey > toKey");
+			}
+
+			return descending ? restrict(to, from) : restrict(from, to);
+		}
+
+		@Override
+		public NavigableMap<K, V> headMap(K toKey, boolean inclusive) {
+			Bound to = bound(toKey, inclusive);
+			return descending ? restrict(to, hi) : restrict(lo, to);
+		}
+
+		@Override
+		public NavigableMap<K, V> tailMap(K fromKey, boolean inclusive) {
+			Bound from = bound(fromKey, inclusive);
+			return descending ? restrict(lo, from) : restrict(from, hi);
+		}
+
+		@Override
+		public SortedMap<K, V> subMap(K fromKey, K toKey) {
+			return subMap(fromKey, true, toKey, false);
+		}
+
+		@Override
+		public SortedMap<K, V> headMap(K toKey) {
+			return headMap(toKey, false);
+		}
+
+		@Override
+		public SortedMap<K, V> tailMap(K fromKey) {
+			return tailMap(fromKey, true);
+		}
+
+		/**
+		 * A view of this one's entries between newLo and
+		 * newHi, which must lie within this view's range.
+		 */
+		protected View restrict(Bound newLo, Bound newHi) {
+			if (newLo != lo && !withinRange(newLo)) {
+				throw new IllegalArgumentException("Key out of range");
+			}
+			if (newHi != hi && !withinRange(newHi)) {
+				throw new IllegalArgumentException("Key out of range");
+			}
+
+			return new View(newLo, newHi, descending);
+		}
+
+		/**
+		 * As TreeMap allows, an exclusive bound may sit on an
+		 * exclusive endpoint of this view.
+		 */
+		protected boolean withinRange(Bound b) {
+			if (b.inclusive) {
+				return inRange(b.bytes);
+			}
+
+			return (lo == null || Bytes.compare(b.bytes, lo.bytes) >= 0)
+					&& (hi == null || Bytes.compare(b.bytes, hi.bytes) <= 0);
+		}
+
+	}
+
+
+	protected class AscendingIterator implements Iterator<Map.Entry<K, V>> {
+
+		protected DBIterator iterator;
+		protected Bound hi;
+		protected Map.Entry<byte[], byte[]> nextEntry;
+		protected Map.Entry<K, V> curEntry;
+
+		public AscendingIterator(Bound lo, Bound hi) {
+			this.iterator = db.iterator(scanOptions);
+			this.hi = hi;
+			this.nextEntry = seekLowest(iterator, lo, hi);
+			closeIfDone();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return nextEntry != null;
+		}
+
+		@Override
+		public Map.Entry<K, V> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+
+			curEntry = new EntryWrapper(iterator.next());
+
+			nextEntry = null;
+			if (iterator.hasNext()) {
+				Map.Entry<byte[], byte[]> entry = iterator.peekNext();
+				if (isData(entry.getKey()) && belowHi(entry.getKey(), hi)) {
+					nextEntry = entry;
+				}
+			}
+			closeIfDone();
+
+			return curEntry;
+		}
+
+		protected void closeIfDone() {
+			if (nextEntry == null) {
+				close(iterator);
+			}
+		}
+
+		@Override
+		public void remove() {
+			NavigableLevelDBMap.this.remove(curEntry.getKey());
+		}
+
+	}
+
+
+	protected class DescendingIterator implements Iterator<Map.Entry<K, V>> {
+
+		protected DBIterator iterator;
+		protected Bound lo;
+		protected byte[] first;
+		protected Map.Entry<byte[], byte[]> nextEntry;
+		protected Map.Entry<K, V> curEntry;
+
+		public DescendingIterator(Bound lo, Bound hi) {
+			this.iterator = db.iterator(scanOptions);
+			this.lo = lo;
+			this.first = firstKey(iterator);
+			this.nextEntry = seekHighest(iterator, first, lo, hi);
+			closeIfDone();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return nextEntry != null;
+		}
+
+		@Override
+		public Map.Entry<K, V> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+
+			curEntry = new EntryWrapper(nextEntry);
+
+			nextEntry = null;
+			if (stepBack(iterator, first)) {
+				Map.Entry<byte[], byte[]> entry = iterator.peekNext();
+				if (aboveLo(entry.getKey(), lo)) {
+					nextEntry = entry;
+				}
+			}
+			closeIfDone();
+
+			return curEntry;
+		}
+
+		protected void closeIfDone() {
+			if (nextEntry == null) {
+				close(iterator);
+			}
+		}
+
+		@Override
+		public void remove() {
+			NavigableLevelDBMap.this.remove(curEntry.getKey());
+		}
+
+	}
+
+
+	/**
+	 * Keys of a view, backed by it.
+	 */
+	protected class NavigableKeySet extends AbstractSet<K> implements NavigableSet<K> {
+
+		protected final NavigableMap<K, V> map;
+
+		public NavigableKeySet(NavigableMap<K, V> map) {
+			this.map = map;
+		}
+
+		@Override
+		public Iterator<K> iterator() {
+			final Iterator<Map.Entry<K, V>> i = map.entrySet().iterator();
+
+			return new Iterator<K>() {
+				@Override
+				public boolean hasNext() {
+					return i.hasNext();
+				}
+
+				@Override
+				public K next() {
+					return i.next().getKey();
+				}
+
+				@Override
+				public void remove() {
+					i.remove();
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return map.size();
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return map.isEmpty();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return map.containsKey(o);
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			return map.remove(o) != null;
+		}
+
+		@Override
+		public boolean removeAll(Collection<?> c) {
+			boolean changed = false;
+			for (Object o : c) {
+				changed |= remove(o);
+			}
+			return changed;
+		}
+
+		@Override
+		public void clear() {
+			map.clear();
+		}
+
+		@Override
+		public Comparator<? super K> comparator() {
+			return map.comparator();
+		}
+
+		@Override
+		public K first() {
+			return map.firstKey();
+		}
+
+		@Override
+		public K last() {
+			return map.lastKey();
+		}
+
+		@Override
+		public K lower(K e) {
+			return map.lowerKey(e);
+		}
+
+		@Override
+		public K floor(K e) {
+			return map.floorKey(e);
+		}
+
+		@Override
+		public K ceiling(K e) {
+			return map.ceilingKey(e);
+		}
+
+		@Override
+		public K higher(K e) {
+			return map.higherKey(e);
+		}
+
+		@Override
+		public K pollFirst() {
+			return key(map.pollFirstEntry());
+		}
+
+		@Override
+		public K pollLast() {
+			return key(map.pollLastEntry());
+		}
+
+		@Override
+		public NavigableSet<K> descendingSet() {
+			return map.descendingKeySet();
+		}
+
+		@Override
+		public Iterator<K> descendingIterator() {
+			return descendingSet().iterator();
+		}
+
+		@Override
+		public NavigableSet<K> subSet(K fromElement, boolean fromInclusive, K toElement, boolean toInclusive) {
+			return map.subMap(fromElement, fromInclusive, toElement, toInclusive).navigableKeySet();
+		}
+
+		@Override
+		public NavigableSet<K> headSet(K toElement, boolean inclusive) {
+			return map.headMap(toElement, inclusive).navigableKeySet();
+		}
+
+		@Override
+		public NavigableSet<K> tailSet(K fromElement, boolean inclusive) {
+			return map.tailMap(fromElement, inclusive).navigableKeySet();
+		}
+
+		@Override
+		public SortedSet<K> subSet(K fromElement, K toElement) {
+			return subSet(fromElement, true, toElement, false);
+		}
+
+		@Override
+		public SortedSet<K> headSet(K toElement) {
+			return headSet(toElement, false);
+		}
+
+		@Override
+		public SortedSet<K> tailSet(K fromElement) {
+			return tailSet(fromElement, true);
+		}
+
+	}
+
+}
@@ -0,0 +1,84 @@
+package pickle.mapdb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+import org.mapdb.BTreeKeySerializer;
+
+/**
+ * Writes the keys of a B-tree node as the first key and then the
+ * difference from each key to the next, as varints.  Keys in
+ * a node are close together, so most differences take a byte or
+ * two.  Unlike MapDB's ZERO_OR_POSITIVE_LONG, negative keys and
+ * comparators that don't sort ascending work too, at the cost of
+ * a zigzag bit.
+ *
+ * @author Michael Lieberman
+ */
+public class LongKeySerializer extends BTreeKeySerializer<Long> implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	public void serialize(DataOutput out, int start, int end, Object[] keys) throws IOException {
+		long previous = 0;
+
+		for (int i = start; i < end; i++) {
+			long key = (Long) keys[i];
+			pack(out, zigzag(key - previous));
+			previous = key;
+		}
+	}
+
+	@Override
+	public Object[] deserialize(DataInput in, int start, int end, int size) throws IOException {
+		Object[] keys = new Object[size];
+		long previous = 0;
+
+		for (int i = start; i < end; i++) {
+			previous += unzigzag(unpack(in));
+			keys[i] = previous;
+		}
+
+		return keys;
+	}
+
+	/**
+	 * Moves the sign to the lowest bit, so small negative
+	 * numbers pack as small as small positive ones.
+	 */
+	protected static long zigzag(long n) {
+		return (n << 1) ^ (n >> 63);
+	}
+
+	protected static long unzigzag(long n) {
+		return (n >>> 1) ^ -(n & 1);
+	}
+
+	/**
+	 * Seven bits a byte, lowest first.  MapDB's packLong rejects
+	 * negative numbers, which a zigzagged difference of more
+	 * than 2^62 is.
+	 */
+	protected static void pack(DataOutput out, long n) throws IOException {
+		while ((n & ~0x7fL) != 0) {
+			out.write((int) (n & 0x7f) | 0x80);
+			n >>>= 7;
+		}
+		out.write((int) n);
+	}
+
+	protected static long unpack(DataInput in) throws IOException {
+		long n = 0;
+		for (int shift = 0; ; shift += 7) {
+			int b = in.readUnsignedByte();
+			n |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return n;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,272 @@
+package pickle.mapdb;
+
+import java.io.File;
+
+import org.mapdb.BTreeKeySerializer;
+import org.mapdb.DBMaker;
+import org.mapdb.Serializer;
+
+import pickle.ClassRegistry;
+
+/**
+ * Engine settings for {@link MapDBMap}, with setters that chain
+ * like {@link pickle.leveldb.LevelDBConfig}'s.  The defaults are
+ * what MapDBMap has always used: a memory-mapped file with the
+ * write-ahead log off, 32 keys per tree node, and MapDB's own
+ * defaults for everything else, except that new maps pickle
+ * their keys and values instead of using MapDB's serialization.
+ *
+ * @author Michael Lieberman
+ */
+public class MapDBConfig {
+
+	/**
+	 * Where the store lives.  The memory stores ignore the
+	 * directory and are gone once the map is closed.
+	 */
+	public static enum Storage {MAPPED_FILE, RANDOM_ACCESS_FILE, DIRECT_MEMORY, HEAP};
+
+	/**
+	 * MapDB's instance caches, which keep deserialized
+	 * tree nodes so that reads skip the store.
+	 */
+	public static enum Cache {NONE, HASH_TABLE, HARD_REF, WEAK_REF, SOFT_REF, LRU};
+
+	/**
+	 * How tree nodes store their keys: pickled, as strings or
+	 * longs delta-compressed within the node, or with MapDB's
+	 * own serialization.
+	 */
+	public static enum Keys {PICKLE, STRING, LONG, MAPDB};
+
+	protected Storage storage = Storage.MAPPED_FILE;
+	protected Cache cache = Cache.HASH_TABLE;
+	protected int cacheSize = 32768;
+	protected boolean asyncWrite = true;
+	protected int asyncFlushDelay = 100;
+	protected boolean writeAheadLog = false;
+	protected int nodeSize = 32;
+	protected boolean valuesOutsideNodes = false;
+	protected boolean keepCounter = false;
+	protected Keys keys = Keys.PICKLE;
+	protected boolean pickleValues = true;
+
+	public MapDBConfig storage(Storage storage) {
+		this.storage = storage;
+		return this;
+	}
+
+	public Storage storage() {
+		return storage;
+	}
+
+	public MapDBConfig cache(Cache cache) {
+		this.cache = cache;
+		return this;
+	}
+
+	public Cache cache() {
+		return cache;
+	}
+
+	/**
+	 * Number of instances the HASH_TABLE and LRU caches hold.
+	 */
+	public MapDBConfig cacheSize(int cacheSize) {
+		this.cacheSize = cacheSize;
+		return this;
+	}
+
+	public int cacheSize() {
+		return cacheSize;
+	}
+
+	/**
+	 * Whether writes are queued and serialized and written
+	 * by a background thread instead of by the caller.
+	 */
+	public MapDBConfig asyncWrite(boolean asyncWrite) {
+		this.asyncWrite = asyncWrite;
+		return this;
+	}
+
+	public boolean asyncWrite() {
+		return asyncWrite;
+	}
+
+	/**
+	 * How long the async writer waits to gather more
+	 * writes, in milliseconds.
+	 */
+	public MapDBConfig asyncFlushDelay(int asyncFlushDelay) {
+		this.asyncFlushDelay = asyncFlushDelay;
+		return this;
+	}
+
+	public int asyncFlushDelay() {
+		return asyncFlushDelay;
+	}
+
+	/**
+	 * Whether commits go through a write-ahead log, which
+	 * survives crashes but writes everything twice.
+	 */
+	public MapDBConfig writeAheadLog(boolean writeAheadLog) {
+		this.writeAheadLog = writeAheadLog;
+		return this;
+	}
+
+	public boolean writeAheadLog() {
+		return writeAheadLog;
+	}
+
+	/**
+	 * Maximum keys per B-tree node.  Larger nodes make the tree
+	 * shallower, which helps reads, but every write rewrites a
+	 * whole node.  Only takes effect on a new map.
+	 */
+	public MapDBConfig nodeSize(int nodeSize) {
+		this.nodeSize = nodeSize;
+		return this;
+	}
+
+	public int nodeSize() {
+		return nodeSize;
+	}
+
+	/**
+	 * Whether values are stored apart from the tree nodes,
+	 * which keeps nodes small when values are large.  Only
+	 * takes effect on a new map.
+	 */
+	public MapDBConfig valuesOutsideNodes(boolean valuesOutsideNodes) {
+		this.valuesOutsideNodes = valuesOutsideNodes;
+		return this;
+	}
+
+	public boolean valuesOutsideNodes() {
+		return valuesOutsideNodes;
+	}
+
+	/**
+	 * Whether the map keeps a count of its entries, so size()
+	 * doesn't walk the tree.  Only takes effect on a new map.
+	 */
+	public MapDBConfig keepCounter(boolean keepCounter) {
+		this.keepCounter = keepCounter;
+		return this;
+	}
+
+	public boolean keepCounter() {
+		return keepCounter;
+	}
+
+	/**
+	 * Only takes effect on a new map; STRING and LONG need
+	 * every key to be a String or a Long.
+	 */
+	public MapDBConfig keys(Keys keys) {
+		this.keys = keys;
+		return this;
+	}
+
+	public Keys keys() {
+		return keys;
+	}
+
+	/**
+	 * Whether values are pickled, or use MapDB's own
+	 * serialization.  Only takes effect on a new map.
+	 */
+	public MapDBConfig pickleValues(boolean pickleValues) {
+		this.pickleValues = pickleValues;
+		return this;
+	}
+
+	public boolean pickleValues() {
+		return pickleValues;
+	}
+
+	public boolean isFileStorage() {
+		return storage == Storage.MAPPED_FILE || storage == Storage.RANDOM_ACCESS_FILE;
+	}
+
+
+	public DBMaker toDBMaker(File dir) {
+		DBMaker maker;
+		switch (storage) {
+		case DIRECT_MEMORY:
+			maker = DBMaker.newDirectMemoryDB();
+			break;
+		case HEAP:
+			maker = DBMaker.newMemoryDB();
+			break;
+		case RANDOM_ACCESS_FILE:
+			maker = DBMaker.newFileDB(dir).randomAccessFileEnable();
+			break;
+		default:
+			maker = DBMaker.newFileDB(dir);
+			break;
+		}
+
+		switch (cache) {
+		case NONE:
+			maker.cacheDisable();
+			break;
+		case HARD_REF:
+			maker.cacheHardRefEnable();
+			break;
+		case WEAK_REF:
+			maker.cacheWeakRefEnable();
+			break;
+		case SOFT_REF:
+			maker.cacheSoftRefEnable();
+			break;
+		case LRU:
+			maker.cacheLRUEnable();
+			break;
+		default:
+			break;
+		}
+		maker.cacheSize(cacheSize);
+
+		if (asyncWrite) {
+			maker.asyncFlushDelay(asyncFlushDelay);
+		}
+		else {
+			maker.asyncWriteDisable();
+		}
+
+		if (!writeAheadLog) {
+			maker.writeAheadLogDisable();
+		}
+
+		return maker;
+	}
+
+	/**
+	 * Returns the key serializer for a new map, or
+	 * null for MapDB's own.
+	 */
+	public BTreeKeySerializer<?> toKeySerializer(ClassRegistry registry) {
+		switch (keys) {
+		case PICKLE:
+			return new PickleKeySerializer(registry);
+		case STRING:
+			return BTreeKeySerializer.STRING;
+		case LONG:
+			return new LongKeySerializer();
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the value serializer for a new map, or
+	 * null for MapDB's own.
+	 */
+	public Serializer<?> toValueSerializer(ClassRegistry registry) {
+		return pickleValues ? new PickleSerializer<Object>(registry) : null;
+	}
+
+}
@@ -1,17 +1,22 @@
 package pickle.mapdb;
 
 import java.io.File;
+import java.lang.reflect.Field;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.NavigableSet;
 import java.util.Set;
 import java.util.SortedMap;
 
+import org.mapdb.BTreeKeySerializer;
+import org.mapdb.BTreeMap;
 import org.mapdb.DB;
-import org.mapdb.DBMaker;
+import org.mapdb.Serializer;
 
+import pickle.ClassRegistry;
 import pickle.NavigablePickleMap;
 
 /**
@@ -19,8 +24,16 @@ import pickle.NavigablePickleMap;
  */
 public class MapDBMap<K, V> implements NavigablePickleMap<K, V> {
 
+	/** Suffix of the map holding a map's class registry. */
+	protected static final String CLASSES = ".classes";
+
 	protected DB db;
 	protected NavigableMap<K, V> map;
+	protected MapDBConfig config;
+	protected Map<Integer, String> classes;
+	protected ClassRegistry registry;
+	/** Classes registered but not yet put in the classes map. */
+	protected Map<Integer, String> newClasses = new HashMap<Integer, String>();
 
 	public MapDBMap(String baseFile) {
 		this(baseFile, "map");
@@ -35,13 +48,114 @@ public class MapDBMap<K, V> implements NavigablePickleMap<K, V> {
 	}
 
 	public MapDBMap(String dir, String mapName, Comparator<K> comparator) {
-		db = DBMaker.newFileDB(new File(dir)).writeAheadLogDisable().make();
+		this(dir, mapName, comparator, new MapDBConfig());
+	}
+
+	public MapDBMap(String dir, MapDBConfig config) {
+		this(dir, "map", null, config);
+	}
+
+	public MapDBMap(String dir, String mapName, Comparator<K> comparator, MapDBConfig config) {
+		this.config = config;
+
+		db = config.toDBMaker(new File(dir)).make();
+
+		// New classes can be registered on MapDB's async writer thread, which
+		// can't write to a map itself, so they're put in the classes map later.
+		classes = db.getTreeMap(mapName+CLASSES);
+		registry = new ClassRegistry(classes, new ClassRegistry.Store() {
+			@Override
+			public void store(int id, String className) {
+				synchronized (newClasses) {
+					newClasses.put(id, className);
+				}
+			}
+		});
+
 		try {
-			map = db.createTreeMap(mapName, 32, false, false, null, null, comparator);
+			map = db.createTreeMap(mapName, config.nodeSize(), config.valuesOutsideNodes(),
+					config.keepCounter(), MapDBMap.<K>cast(config.toKeySerializer(registry)),
+					MapDBMap.<V>cast(config.toValueSerializer(registry)), comparator);
+
+			// MapDB registers the serializers' classes when it first writes
+			// the tree's root.  If the async writer does that with its queue
+			// full, it blocks on itself, so get it done while the queue is empty.
+			db.commit();
 		} catch (IllegalArgumentException e) {
 			e.printStackTrace();
 			// Map already exists so just get it.
 			map = db.getTreeMap(mapName);
+			attachRegistry();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> BTreeKeySerializer<T> cast(BTreeKeySerializer<?> serializer) {
+		return (BTreeKeySerializer<T>) serializer;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> Serializer<T> cast(Serializer<?> serializer) {
+		return (Serializer<T>) serializer;
+	}
+
+	/**
+	 * MapDB stores a tree's serializers with the tree and
+	 * recreates them when it's reopened, without the registry.
+	 * BTreeMap doesn't expose them, so they're reached by
+	 * reflection to hand it back.
+	 */
+	protected void attachRegistry() {
+		try {
+			for (String name : new String[] {"keySerializer", "valueSerializer"}) {
+				Field field = BTreeMap.class.getDeclaredField(name);
+				field.setAccessible(true);
+				Object serializer = field.get(map);
+
+				if (serializer instanceof PickleKeySerializer) {
+					((PickleKeySerializer) serializer).attach(registry);
+				}
+				else if (serializer instanceof PickleSerializer) {
+					((PickleSerializer<?>) serializer).attach(registry);
+				}
+			}
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Puts the classes the serializers have registered in the
+	 * classes map.  Called after every write, so when MapDB
+	 * serializes on the caller's thread they're in the same
+	 * transaction as the entry that registered them.
+	 */
+	protected boolean storeNewClasses() {
+		Map<Integer, String> added;
+		synchronized (newClasses) {
+			if (newClasses.isEmpty()) {
+				return false;
+			}
+			added = new HashMap<Integer, String>(newClasses);
+			newClasses.clear();
+		}
+
+		classes.putAll(added);
+		return true;
+	}
+
+	/**
+	 * Commits along with any classes not yet stored.  The async
+	 * writer serializes entries on its own thread, and may find
+	 * more classes as the commit flushes them; those are
+	 * committed right after.
+	 */
+	protected void commit() {
+		storeNewClasses();
+		db.commit();
+
+		if (storeNewClasses()) {
+			db.commit();
 		}
 	}
 
@@ -70,9 +184,31 @@ public class MapDBMap<K, V> implements NavigablePickleMap<K, V> {
 		return map.get(key);
 	}
 
+	@Override
+	public Map<K, V> getMany(Collection<? extends K> keys) {
+		Map<K, V> found = new HashMap<K, V>();
+
+		for (K key : keys) {
+			V value = map.get(key);
+			if (value != null) {
+				found.put(key, value);
+			}
+		}
+
+		return found;
+	}
+
 	@Override
 	public V put(K key, V value) {
-		return map.put(key, value);
+		V old = map.put(key, value);
+		storeNewClasses();
+		return old;
+	}
+
+	@Override
+	public void set(K key, V value) {
+		map.put(key, value);
+		storeNewClasses();
 	}
 
 	@Override
@@ -83,6 +219,14 @@ public class MapDBMap<K, V> implements NavigablePickleMap<K, V> {
 	@Override
 	public void putAll(Map<? extends K, ? extends V> m) {
 		map.putAll(m);
+		storeNewClasses();
+	}
+
+	@Override
+	public void removeAll(Collection<?> keys) {
+		for (Object key : keys) {
+			map.remove(key);
+		}
 	}
 
 	@Override
@@ -107,13 +251,16 @@ public class MapDBMap<K, V> implements NavigablePickleMap<K, V> {
 
 	@Override
 	public void flush() {
-		db.commit();
+		commit();
 	}
 
 	@Override
 	public void close() {
-		db.commit();
-		db.compact();
+		commit();
+		// MapDB can't compact its memory stores, which go away on close anyway.
+		if (config.isFileStorage()) {
+			db.compact();
+		}
 		db.close();
 	}
 
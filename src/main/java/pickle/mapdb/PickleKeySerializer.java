@@ -0,0 +1,64 @@
+package pickle.mapdb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+import org.mapdb.BTreeKeySerializer;
+
+import pickle.ClassRegistry;
+import pickle.Pickler;
+
+/**
+ * Serializes the keys of a B-tree node with {@link Pickler}.  Each
+ * key's pickle is written as the length of the prefix it shares
+ * with the previous key's and the rest, which MapDB's own STRING
+ * serializer does for strings; pickles of keys of the same class
+ * start with the same class ID and often the same leading fields.
+ *
+ * As with {@link PickleSerializer}, {@link MapDBMap} attaches the
+ * registry on open.
+ *
+ * @author Michael Lieberman
+ */
+public class PickleKeySerializer extends BTreeKeySerializer<Object> implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	protected transient ClassRegistry registry;
+
+	public PickleKeySerializer(ClassRegistry registry) {
+		this.registry = registry;
+	}
+
+	public void attach(ClassRegistry registry) {
+		this.registry = registry;
+	}
+
+	@Override
+	public void serialize(DataOutput out, int start, int end, Object[] keys) throws IOException {
+		byte[] previous = null;
+
+		for (int i = start; i < end; i++) {
+			byte[] bytes = Pickler.pickle(keys[i], registry);
+			leadingValuePackWrite(out, bytes, previous, 0);
+			previous = bytes;
+		}
+	}
+
+	@Override
+	public Object[] deserialize(DataInput in, int start, int end, int size) throws IOException {
+		Object[] keys = new Object[size];
+		byte[] previous = null;
+
+		for (int i = start; i < end; i++) {
+			byte[] bytes = leadingValuePackRead(in, previous, 0);
+			keys[i] = Pickler.unpickle(bytes, registry);
+			previous = bytes;
+		}
+
+		return keys;
+	}
+
+}
@@ -0,0 +1,52 @@
+package pickle.mapdb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+import org.mapdb.Serializer;
+import org.mapdb.Utils;
+
+import pickle.ClassRegistry;
+import pickle.Pickler;
+
+/**
+ * Serializes MapDB values with {@link Pickler}, as a packed
+ * length and the pickled bytes.
+ *
+ * MapDB stores a tree's serializers along with the tree and
+ * recreates them without calling a constructor, so the registry
+ * isn't stored with this; {@link MapDBMap} attaches it on open.
+ *
+ * @author Michael Lieberman
+ */
+public class PickleSerializer<T> implements Serializer<T>, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	protected transient ClassRegistry registry;
+
+	public PickleSerializer(ClassRegistry registry) {
+		this.registry = registry;
+	}
+
+	public void attach(ClassRegistry registry) {
+		this.registry = registry;
+	}
+
+	@Override
+	public void serialize(DataOutput out, T value) throws IOException {
+		byte[] bytes = Pickler.pickle(value, registry);
+		Utils.packInt(out, bytes.length);
+		out.write(bytes);
+	}
+
+	@Override
+	public T deserialize(DataInput in, int available) throws IOException {
+		byte[] bytes = new byte[Utils.unpackInt(in)];
+		in.readFully(bytes);
+		return Pickler.unpickle(bytes, registry);
+	}
+
+}
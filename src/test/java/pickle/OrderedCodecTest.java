@@ -0,0 +1,171 @@
+package pickle;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests that keys survive encoding, and that their
+ * encodings sort the way the keys themselves do.
+ *
+ * @author Michael Lieberman
+ */
+public class OrderedCodecTest {
+
+	@Test
+	public void numbersRoundTrip() {
+		for (long l : new long[]{Long.MIN_VALUE, -1L << 40, -1, 0, 1, 1L << 40, Long.MAX_VALUE}) {
+			assertEquals(l, OrderedCodec.<Long>decode(OrderedCodec.encode(l)).longValue());
+		}
+		for (int i : new int[]{Integer.MIN_VALUE, -65536, -1, 0, 1, 65536, Integer.MAX_VALUE}) {
+			assertEquals(i, OrderedCodec.<Integer>decode(OrderedCodec.encode(i)).intValue());
+		}
+		for (short s : new short[]{Short.MIN_VALUE, -1, 0, 1, Short.MAX_VALUE}) {
+			assertEquals(s, OrderedCodec.<Short>decode(OrderedCodec.encode(s)).shortValue());
+		}
+		for (byte b : new byte[]{Byte.MIN_VALUE, -1, 0, 1, Byte.MAX_VALUE}) {
+			assertEquals(b, OrderedCodec.<Byte>decode(OrderedCodec.encode(b)).byteValue());
+		}
+		for (double d : new double[]{Double.NEGATIVE_INFINITY, -Double.MAX_VALUE, -1.5, -Double.MIN_VALUE,
+				-0.0, 0.0, Double.MIN_VALUE, 1.5, Double.MAX_VALUE, Double.POSITIVE_INFINITY, Double.NaN}) {
+			assertEquals(Double.valueOf(d), OrderedCodec.<Double>decode(OrderedCodec.encode(d)));
+		}
+		for (float f : new float[]{Float.NEGATIVE_INFINITY, -1.5f, -0.0f, 0.0f, Float.MIN_VALUE, 1.5f,
+				Float.POSITIVE_INFINITY, Float.NaN}) {
+			assertEquals(Float.valueOf(f), OrderedCodec.<Float>decode(OrderedCodec.encode(f)));
+		}
+	}
+
+	@Test
+	public void stringsAndBytesRoundTrip() {
+		for (String s : new String[]{"", "a", "a\0", "\0\0b", "café", "€中"}) {
+			assertEquals(s, OrderedCodec.decode(OrderedCodec.encode(s)));
+		}
+
+		byte[] bytes = {0, -1, 0, 0, 5, (byte) 0xff};
+		assertArrayEquals(bytes, OrderedCodec.<byte[]>decode(OrderedCodec.encode(bytes)));
+		assertArrayEquals(new byte[0], OrderedCodec.<byte[]>decode(OrderedCodec.encode(new byte[0])));
+
+		// Longer than the reader's initial buffer.
+		byte[] longer = new byte[100];
+		for (int i = 0; i < longer.length; i++) {
+			longer[i] = (byte) (i % 3);
+		}
+		assertArrayEquals(longer, OrderedCodec.<byte[]>decode(OrderedCodec.encode(longer)));
+	}
+
+	@Test
+	public void tuplesRoundTrip() {
+		List<Object> tuple = new ArrayList<Object>();
+		tuple.add("user");
+		tuple.add(42L);
+		tuple.add(true);
+		tuple.add(Arrays.<Object>asList(1, "x\0y", Collections.emptyList()));
+		tuple.add(-2.5);
+
+		assertEquals(tuple, OrderedCodec.decode(OrderedCodec.encode(tuple)));
+		assertEquals(Collections.emptyList(), OrderedCodec.decode(OrderedCodec.encode(Collections.emptyList())));
+	}
+
+	@Test
+	public void prefixedEncodingDecodesAfterThePrefix() {
+		byte[] bytes = OrderedCodec.encode(7, "key");
+		assertEquals(7, bytes[0]);
+		assertEquals("key", OrderedCodec.decode(bytes, 1, bytes.length - 1));
+	}
+
+	@Test
+	public void numbersSortInOrder() {
+		assertSorted(Long.MIN_VALUE, -1L << 40, -256L, -1L, 0L, 1L, 255L, 256L, 1L << 40, Long.MAX_VALUE);
+		assertSorted(Integer.MIN_VALUE, -65536, -1, 0, 1, 255, 65536, Integer.MAX_VALUE);
+		assertSorted(Short.MIN_VALUE, (short) -1, (short) 0, (short) 1, Short.MAX_VALUE);
+		assertSorted(Byte.MIN_VALUE, (byte) -1, (byte) 0, (byte) 1, Byte.MAX_VALUE);
+		assertSorted(Double.NEGATIVE_INFINITY, -Double.MAX_VALUE, -1.5, -1.25, -Double.MIN_VALUE,
+				-0.0, 0.0, Double.MIN_VALUE, 1.25, 1.5, Double.MAX_VALUE, Double.POSITIVE_INFINITY, Double.NaN);
+		assertSorted(Float.NEGATIVE_INFINITY, -1.5f, -1.25f, -0.0f, 0.0f, Float.MIN_VALUE, 1.25f, 1.5f,
+				Float.POSITIVE_INFINITY, Float.NaN);
+	}
+
+	@Test
+	public void stringsSortInOrder() {
+		// A prefix sorts first, even before an embedded 0x00.
+		assertSorted("", "\0", "a", "a\0", "a\0b", "aa", "ab", "b", "café", "€");
+		assertSorted(new byte[0], new byte[]{0}, new byte[]{0, 0}, new byte[]{0, 1}, new byte[]{1},
+				new byte[]{(byte) 0x7f}, new byte[]{(byte) 0x80}, new byte[]{(byte) 0xff});
+	}
+
+	@Test
+	public void tuplesSortElementByElement() {
+		assertSorted(
+				Arrays.<Object>asList(),
+				Arrays.<Object>asList(-1L),
+				Arrays.<Object>asList(-1L, "z"),
+				Arrays.<Object>asList(1L),
+				Arrays.<Object>asList(1L, ""),
+				Arrays.<Object>asList(1L, "a"),
+				Arrays.<Object>asList(1L, "a", 0L),
+				Arrays.<Object>asList(1L, "b"),
+				Arrays.<Object>asList(2L));
+	}
+
+	@Test
+	public void typesSortByType() {
+		assertSorted(false, true, (byte) 9, (short) 9, 9, 9L, 9f, 9.0, "9", new byte[]{9}, Arrays.asList(9));
+	}
+
+	@Test
+	public void unsupportedTypesAreRejected() {
+		for (Object obj : new Object[]{null, new Object(), 'c'}) {
+			try {
+				OrderedCodec.encode(obj);
+				fail("Encoded " + obj);
+			} catch (IllegalArgumentException e) {
+				// Expected.
+			}
+		}
+	}
+
+	@Test
+	public void malformedBytesAreRejected() {
+		byte[] bytes = OrderedCodec.encode(1L);
+
+		for (byte[] bad : new byte[][]{Arrays.copyOf(bytes, bytes.length + 1),
+				Arrays.copyOf(bytes, bytes.length - 1), {(byte) 0x99}}) {
+			try {
+				OrderedCodec.decode(bad);
+				fail("Decoded " + Arrays.toString(bad));
+			} catch (IllegalArgumentException e) {
+				// Expected.
+			}
+		}
+	}
+
+	/**
+	 * Checks that each key's encoding sorts before the next's,
+	 * both as bytes and by the comparator.
+	 */
+	protected void assertSorted(Object... keys) {
+		for (int i = 0; i + 1 < keys.length; i++) {
+			byte[] a = OrderedCodec.encode(keys[i]);
+			byte[] b = OrderedCodec.encode(keys[i + 1]);
+			String pair = describe(keys[i]) + " and " + describe(keys[i + 1]);
+
+			assertTrue(pair, Bytes.compare(a, b) < 0);
+			assertTrue(pair, OrderedCodec.COMPARATOR.compare(keys[i], keys[i + 1]) < 0);
+			assertTrue(pair, OrderedCodec.COMPARATOR.compare(keys[i + 1], keys[i]) > 0);
+		}
+	}
+
+	protected static String describe(Object key) {
+		return key instanceof byte[] ? Arrays.toString((byte[]) key) : String.valueOf(key);
+	}
+
+}
@@ -0,0 +1,172 @@
+package pickle.accumulo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.mock.MockInstance;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.hadoop.io.Text;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the row count spread over the counter rows, and the
+ * recount after blind writes, against a MockInstance.
+ *
+ * @author Michael Lieberman
+ */
+public class AccumuloMapCountTest {
+
+	protected Connector conn;
+	protected List<AccumuloMap<Integer, String>> maps = new ArrayList<AccumuloMap<Integer, String>>();
+
+	@Before
+	public void setUp() throws Exception {
+		conn = new MockInstance("count" + System.nanoTime()).getConnector("root", new byte[0]);
+	}
+
+	@After
+	public void tearDown() {
+		for (AccumuloMap<Integer, String> map : maps) {
+			map.close();
+		}
+	}
+
+	protected AccumuloMap<Integer, String> open(boolean create, int counterShards) throws Exception {
+		AccumuloMap<Integer, String> map = new AccumuloMap<Integer, String>(conn, "t",
+				true, create, new AccumuloConfig().counterShards(counterShards));
+		maps.add(map);
+		return map;
+	}
+
+	/**
+	 * Returns the stored counts by counter row.
+	 */
+	protected Map<Text, Long> counts(AccumuloMap<?, ?> map) {
+		Map<Text, Long> counts = new HashMap<Text, Long>();
+		for (Map.Entry<Key, Value> entry : map.columnScanner(Range.prefix(AccumuloMap.METAROW), AccumuloMap.COUNTCF)) {
+			counts.put(entry.getKey().getRow(), Long.parseLong(new String(entry.getValue().get())));
+		}
+		return counts;
+	}
+
+	protected boolean hasStaleMarks(AccumuloMap<?, ?> map) {
+		return map.columnScanner(Range.prefix(AccumuloMap.METAROW), AccumuloMap.STALECF).iterator().hasNext();
+	}
+
+	@Test
+	public void sizeSumsTheCounterRows() throws Exception {
+		AccumuloMap<Integer, String> map = open(true, 4);
+
+		for (int i = 0; i < 100; i++) {
+			map.put(i, "v" + i);
+		}
+		// Replacing or removing what isn't there doesn't count.
+		for (int i = 0; i < 50; i++) {
+			map.put(i, "w" + i);
+		}
+		for (int i = 0; i < 10; i++) {
+			map.remove(i);
+		}
+		map.remove(1000);
+
+		assertEquals(90, map.size());
+
+		Map<Text, Long> counts = counts(map);
+		long sum = 0;
+		int used = 0;
+		for (long count : counts.values()) {
+			sum += count;
+			used += count != 0 ? 1 : 0;
+		}
+		assertEquals(90, sum);
+		assertTrue("counts in " + counts, used > 1);
+		assertFalse(hasStaleMarks(map));
+	}
+
+	@Test
+	public void blindWritesAreRecounted() throws Exception {
+		AccumuloMap<Integer, String> map = open(true, 2);
+
+		for (int i = 0; i < 10; i++) {
+			map.put(i, "v" + i);
+		}
+		// Adds 10 to 14.
+		for (int i = 5; i < 15; i++) {
+			map.set(i, "s" + i);
+		}
+		assertTrue(hasStaleMarks(map));
+
+		// Removes 12 to 14.
+		List<Integer> keys = new ArrayList<Integer>();
+		for (int i = 12; i < 20; i++) {
+			keys.add(i);
+		}
+		keys.add(100);
+		map.removeAll(keys);
+
+		assertEquals(12, map.size());
+		assertFalse(hasStaleMarks(map));
+
+		// Counting carries on from the recount.
+		map.put(50, "x");
+		map.remove(0);
+		assertEquals(12, map.size());
+		assertFalse(hasStaleMarks(map));
+	}
+
+	@Test
+	public void blindWritesByAnotherClientAreRecounted() throws Exception {
+		AccumuloMap<Integer, String> first = open(true, 4);
+		AccumuloMap<Integer, String> second = open(false, 4);
+
+		for (int i = 0; i < 20; i++) {
+			first.put(i, "v" + i);
+		}
+		assertEquals(20, second.size());
+
+		Map<Integer, String> more = new HashMap<Integer, String>();
+		for (int i = 10; i < 30; i++) {
+			more.put(i, "m" + i);
+		}
+		second.putAll(more);
+
+		assertEquals(30, first.size());
+		assertEquals(30, second.size());
+	}
+
+	@Test
+	public void clientsWithDifferentCounterShardsAgree() throws Exception {
+		AccumuloMap<Integer, String> four = open(true, 4);
+		AccumuloMap<Integer, String> sixteen = open(false, 16);
+
+		for (int i = 0; i < 50; i++) {
+			four.put(i, "v" + i);
+		}
+		for (int i = 50; i < 100; i++) {
+			sixteen.put(i, "v" + i);
+		}
+		// Counted down in rows the other client counted them up in.
+		for (int i = 0; i < 10; i++) {
+			sixteen.remove(i);
+		}
+
+		assertEquals(90, four.size());
+		assertEquals(90, sixteen.size());
+
+		four.remove(50);
+		assertEquals(89, sixteen.size());
+		assertTrue(counts(four).size() > 4);
+	}
+
+}
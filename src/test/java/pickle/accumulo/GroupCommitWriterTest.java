@@ -0,0 +1,300 @@
+package pickle.accumulo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.MutationsRejectedException;
+import org.apache.accumulo.core.data.ConstraintViolationSummary;
+import org.apache.accumulo.core.data.KeyExtent;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Value;
+import org.apache.hadoop.io.Text;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests when GroupCommitWriter flushes, against a
+ * BatchWriter that records what it's asked to do.
+ *
+ * @author Michael Lieberman
+ */
+public class GroupCommitWriterTest {
+
+	/** Long enough that a test never sees it pass. */
+	protected static final long NEVER = 60 * 1000;
+
+	protected FakeWriter fake = new FakeWriter();
+	protected GroupCommitWriter writer;
+
+	@After
+	public void tearDown() throws Exception {
+		fake.release();
+		try {
+			writer.close();
+		} catch (MutationsRejectedException e) {
+			// Some tests leave it failed.
+		}
+	}
+
+	protected static Mutation mutation(String row) {
+		Mutation m = new Mutation(new Text(row));
+		m.put(new Text("cf"), new Text("cq"), new Value("value".getBytes()));
+		return m;
+	}
+
+	@Test
+	public void flushWaitsForEverythingAdded() throws Exception {
+		writer = new GroupCommitWriter(fake, NEVER, Long.MAX_VALUE);
+
+		for (int i = 0; i < 10; i++) {
+			writer.addMutation(mutation("row" + i));
+		}
+		assertEquals(0, fake.flushed());
+
+		writer.flush();
+		assertEquals(10, fake.flushed());
+		assertEquals(1, fake.flushes());
+	}
+
+	@Test
+	public void flushingARowWaitsOnlyIfItHasWrites() throws Exception {
+		writer = new GroupCommitWriter(fake, NEVER, Long.MAX_VALUE);
+
+		writer.addMutation(mutation("a"));
+		writer.flush(new Text("b"));
+		assertEquals(0, fake.flushes());
+
+		writer.flush(new Text("a"));
+		assertEquals(1, fake.flushed());
+
+		// Flushed already.
+		writer.flush(new Text("a"));
+		writer.flush();
+		assertEquals(1, fake.flushes());
+	}
+
+	@Test
+	public void flushesOnceFlushBytesAreAdded() throws Exception {
+		Mutation m = mutation("a");
+		writer = new GroupCommitWriter(fake, NEVER, 3 * m.numBytes());
+
+		writer.addMutation(mutation("a"));
+		writer.addMutation(mutation("b"));
+		assertFalse(fake.awaitFlushed(2, 200));
+
+		writer.addMutation(mutation("c"));
+		assertTrue(fake.awaitFlushed(3, 10000));
+	}
+
+	@Test
+	public void flushesOnceTheOldestWriteIsMaxLatencyOld() throws Exception {
+		long maxLatency = 100;
+		writer = new GroupCommitWriter(fake, maxLatency, Long.MAX_VALUE);
+
+		// With the flusher idle, waiting for something to be added.
+		Thread.sleep(50);
+
+		long start = System.currentTimeMillis();
+		writer.addMutations(Collections.nCopies(5, mutation("a")));
+
+		assertTrue(fake.awaitFlushed(5, 10000));
+		assertTrue(System.currentTimeMillis() - start >= maxLatency - 10);
+		assertEquals(1, fake.flushes());
+	}
+
+	@Test
+	public void callersWaitingTogetherShareAFlush() throws Exception {
+		writer = new GroupCommitWriter(fake, NEVER, Long.MAX_VALUE);
+		fake.hold();
+
+		// The first flush is held up in the underlying writer...
+		Thread first = flushInThread("first");
+		assertTrue(fake.awaitFlushing(10000));
+
+		// ...while everyone else adds and waits.
+		List<Thread> others = new ArrayList<Thread>();
+		for (int i = 0; i < 5; i++) {
+			others.add(flushInThread("other" + i));
+		}
+		while (fake.added() < 6) {
+			Thread.sleep(1);
+		}
+
+		fake.release();
+		first.join(10000);
+		for (Thread other : others) {
+			other.join(10000);
+			assertFalse(other.isAlive());
+		}
+
+		assertEquals(6, fake.flushed());
+		assertEquals(2, fake.flushes());
+	}
+
+	protected Thread flushInThread(final String row) {
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					writer.addMutation(mutation(row));
+					writer.flush();
+				} catch (MutationsRejectedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		thread.start();
+		return thread;
+	}
+
+	@Test
+	public void rejectedMutationsAreThrownToEveryone() throws Exception {
+		writer = new GroupCommitWriter(fake, NEVER, Long.MAX_VALUE);
+		MutationsRejectedException rejected = new MutationsRejectedException(
+				new ArrayList<ConstraintViolationSummary>(), new ArrayList<KeyExtent>(),
+				new ArrayList<String>(), 1, null);
+		fake.reject(rejected);
+
+		writer.addMutation(mutation("a"));
+		try {
+			writer.flush();
+			fail("Flushed rejected mutations");
+		} catch (MutationsRejectedException e) {
+			assertSame(rejected, e);
+		}
+
+		try {
+			writer.addMutation(mutation("b"));
+			fail("Added after a rejection");
+		} catch (MutationsRejectedException e) {
+			assertSame(rejected, e);
+		}
+
+		try {
+			writer.flush(new Text("c"));
+			fail("Flushed after a rejection");
+		} catch (MutationsRejectedException e) {
+			assertSame(rejected, e);
+		}
+	}
+
+	@Test
+	public void closeFlushesAndStops() throws Exception {
+		writer = new GroupCommitWriter(fake, NEVER, Long.MAX_VALUE);
+
+		writer.addMutation(mutation("a"));
+		writer.addMutation(mutation("b"));
+		writer.close();
+
+		assertEquals(2, fake.flushed());
+		assertTrue(fake.closed);
+		assertFalse(writer.flusher.isAlive());
+	}
+
+	/**
+	 * Counts what's added and flushed, and can hold up
+	 * or reject flushes.
+	 */
+	protected static class FakeWriter implements BatchWriter {
+
+		protected int added;
+		protected int flushed;
+		protected int flushes;
+		protected boolean closed;
+		protected MutationsRejectedException rejected;
+		protected CountDownLatch held = new CountDownLatch(0);
+		protected CountDownLatch flushing = new CountDownLatch(1);
+
+		@Override
+		public synchronized void addMutation(Mutation m) {
+			added++;
+		}
+
+		@Override
+		public synchronized void addMutations(Iterable<Mutation> iterable) {
+			for (Mutation m : iterable) {
+				added++;
+			}
+		}
+
+		@Override
+		public void flush() throws MutationsRejectedException {
+			flushing.countDown();
+
+			try {
+				held.await();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+
+			synchronized (this) {
+				flushes++;
+				if (rejected != null) {
+					throw rejected;
+				}
+				flushed = added;
+				notifyAll();
+			}
+		}
+
+		@Override
+		public synchronized void close() {
+			closed = true;
+		}
+
+		public synchronized int added() {
+			return added;
+		}
+
+		public synchronized int flushed() {
+			return flushed;
+		}
+
+		public synchronized int flushes() {
+			return flushes;
+		}
+
+		public synchronized void reject(MutationsRejectedException rejected) {
+			this.rejected = rejected;
+		}
+
+		public void hold() {
+			held = new CountDownLatch(1);
+		}
+
+		public void release() {
+			held.countDown();
+		}
+
+		public boolean awaitFlushing(long millis) throws InterruptedException {
+			return flushing.await(millis, TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * Waits until at least count mutations are flushed.
+		 */
+		public synchronized boolean awaitFlushed(int count, long millis) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + millis;
+			while (flushed < count) {
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0) {
+					return false;
+				}
+				wait(left);
+			}
+			return true;
+		}
+
+	}
+
+}
@@ -0,0 +1,213 @@
+package pickle.accumulo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.accumulo.core.client.AccumuloException;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.mock.MockInstance;
+import org.apache.accumulo.core.data.Range;
+import org.apache.hadoop.io.Text;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pickle.OrderedCodec;
+
+/**
+ * Tests NavigableAccumuloMap against a TreeMap with the same entries,
+ * on a MockInstance.  The mock keeps a table in one tablet, so the map
+ * is given made-up tablet boundaries, and a small batch size, to walk
+ * ranges and descending views across several of them.
+ *
+ * @author Michael Lieberman
+ */
+public class NavigableAccumuloMapTest {
+
+	/** Made-up tablet split points, as keys. */
+	protected static final int[] SPLITS = {-500, -5, 0, 7, 300, 800};
+
+	protected Connector conn;
+	protected List<AccumuloMap<?, ?>> maps = new ArrayList<AccumuloMap<?, ?>>();
+	protected NavigableAccumuloMap<Integer, String> map;
+	protected TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+
+	@Before
+	public void setUp() throws Exception {
+		conn = new MockInstance("nav" + System.nanoTime()).getConnector("root", new byte[0]);
+
+		map = new SplitMap(conn, "t");
+		maps.add(map);
+		map.setBatchSize(7);
+
+		Random random = new Random(3);
+		for (int i = 0; i < 600; i++) {
+			int key = random.nextInt(2000) - 1000;
+			map.put(key, "v" + key);
+			expected.put(key, "v" + key);
+		}
+	}
+
+	@After
+	public void tearDown() {
+		for (AccumuloMap<?, ?> open : maps) {
+			open.close();
+		}
+	}
+
+	@Test
+	public void iteratesInKeyOrder() {
+		assertEquals(expected.size(), map.size());
+		assertEquals(list(expected.keySet()), list(map.keySet()));
+		assertEquals(list(expected.descendingKeySet()), list(map.descendingKeySet()));
+		assertEquals(expected.firstKey(), map.firstKey());
+		assertEquals(expected.lastKey(), map.lastKey());
+	}
+
+	@Test
+	public void navigatesLikeATreeMap() {
+		Random random = new Random(4);
+		for (int i = 0; i < 200; i++) {
+			int key = random.nextInt(2400) - 1200;
+
+			assertEquals(expected.ceilingKey(key), map.ceilingKey(key));
+			assertEquals(expected.floorKey(key), map.floorKey(key));
+			assertEquals(expected.higherKey(key), map.higherKey(key));
+			assertEquals(expected.lowerKey(key), map.lowerKey(key));
+			assertEquals(expected.descendingMap().ceilingKey(key), map.descendingMap().ceilingKey(key));
+		}
+	}
+
+	@Test
+	public void viewsMatchTreeMapViews() {
+		Random random = new Random(5);
+		for (int i = 0; i < 100; i++) {
+			int from = random.nextInt(2400) - 1200;
+			int to = from + random.nextInt(600);
+			boolean fromInclusive = random.nextBoolean();
+			boolean toInclusive = random.nextBoolean();
+
+			NavigableMap<Integer, String> view = map.subMap(from, fromInclusive, to, toInclusive);
+			NavigableMap<Integer, String> expectedView = expected.subMap(from, fromInclusive, to, toInclusive);
+
+			assertEquals(list(expectedView.entrySet()), list(view.entrySet()));
+			assertEquals(list(expectedView.descendingMap().entrySet()), list(view.descendingMap().entrySet()));
+			assertEquals(expectedView.size(), view.size());
+			assertEquals(expectedView.isEmpty() ? null : expectedView.lastKey(), view.isEmpty() ? null : view.lastKey());
+
+			assertEquals(list(expected.headMap(from, fromInclusive).keySet()), list(map.headMap(from, fromInclusive).keySet()));
+			assertEquals(list(expected.tailMap(to, toInclusive).descendingKeySet()),
+					list(map.tailMap(to, toInclusive).descendingKeySet()));
+		}
+	}
+
+	@Test
+	public void emptyRangesHaveNoEntries() {
+		NavigableMap<Integer, String> view = map.subMap(5000, true, 6000, true);
+
+		assertEquals(0, view.size());
+		assertNull(view.firstEntry());
+		assertNull(view.lastEntry());
+		assertEquals(0, list(view.descendingKeySet()).size());
+	}
+
+	@Test
+	public void pollsAndClearsViews() {
+		assertEquals(expected.pollFirstEntry(), map.pollFirstEntry());
+		assertEquals(expected.pollLastEntry(), map.pollLastEntry());
+
+		map.subMap(-100, 100).clear();
+		expected.subMap(-100, 100).clear();
+
+		assertEquals(list(expected.keySet()), list(map.keySet()));
+		assertEquals(expected.size(), map.size());
+	}
+
+	@Test
+	public void scansWithAPredicateInEveryTablet() {
+		final AtomicInteger visited = new AtomicInteger();
+
+		map.scan(new Negative(), new AccumuloMap.Visitor<Integer, String>() {
+			@Override
+			public void visit(Integer key, String value) {
+				visited.incrementAndGet();
+			}
+		});
+
+		assertEquals(expected.headMap(0).size(), visited.get());
+	}
+
+	@Test
+	public void plainAndOrderedTablesDontMix() throws Exception {
+		AccumuloMap<Integer, String> plain = new AccumuloMap<Integer, String>(conn, "plain", true, true);
+		plain.put(1, "x");
+		plain.close();
+
+		try {
+			maps.add(new NavigableAccumuloMap<Integer, String>(conn, "plain"));
+			fail("Opened a plain table as ordered");
+		} catch (IllegalStateException e) {
+			// Expected.
+		}
+
+		try {
+			maps.add(new AccumuloMap<Integer, String>(conn, "t"));
+			fail("Opened an ordered table as plain");
+		} catch (IllegalStateException e) {
+			// Expected.
+		}
+	}
+
+	protected static <T> List<T> list(Iterable<T> iterable) {
+		List<T> list = new ArrayList<T>();
+		for (T t : iterable) {
+			list.add(t);
+		}
+		return list;
+	}
+
+	/**
+	 * Reports the table as split at {@link #SPLITS}.
+	 */
+	protected static class SplitMap extends NavigableAccumuloMap<Integer, String> {
+
+		public SplitMap(Connector conn, String table) throws AccumuloException {
+			super(conn, table, true, true);
+		}
+
+		@Override
+		protected List<Range> tabletRanges() {
+			List<Range> ranges = new ArrayList<Range>();
+
+			Text start = null;
+			for (int split : SPLITS) {
+				Text end = new Text(OrderedCodec.encode(split));
+				ranges.add(new Range(start, false, end, true));
+				start = end;
+			}
+			ranges.add(new Range(start, false, null, true));
+
+			return ranges;
+		}
+
+	}
+
+	public static class Negative implements AccumuloMap.Predicate<Integer, String> {
+
+		@Override
+		public boolean accept(Integer key, String value) {
+			return key < 0;
+		}
+
+	}
+
+}
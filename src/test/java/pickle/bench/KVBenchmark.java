@@ -0,0 +1,136 @@
+package pickle.bench;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import pickle.ClassRegistry;
+import pickle.KV;
+import pickle.KV.Type;
+import pickle.Pickler;
+
+/**
+ * Compares bytes allocated and time per key/value framing call
+ * between {@link KV} and the old copy-based framing, i.e. what
+ * every LevelDB/CDB get and put pays on top of the store itself.
+ *
+ * Lives with the tests, so it isn't in the jar.  Run with
+ * target/classes and target/test-classes on the classpath:
+ * java pickle.bench.KVBenchmark [iterations]
+ *
+ * @author Michael Lieberman
+ */
+public class KVBenchmark {
+
+	private static final com.sun.management.ThreadMXBean THREADS =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	public static void main(String[] args) {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+		final String key = "user:1234567";
+		final Long value = 9876543210L;
+		final byte[] keyBytes = KV.toBytes(Type.DATA, key);
+		final byte[] valueBytes = KV.toBytes(Type.DATA, value);
+
+		Op[] ops = new Op[] {
+			new Op("put (copying)") {
+				@Override
+				Object run() {
+					copyingToBytes(Type.DATA, key);
+					return copyingToBytes(Type.DATA, value);
+				}
+			},
+			new Op("put (KV)") {
+				@Override
+				Object run() {
+					KV.toBytes(Type.DATA, key, ClassRegistry.NONE);
+					return KV.toBytes(Type.DATA, value, ClassRegistry.NONE);
+				}
+			},
+			new Op("get (copying)") {
+				@Override
+				Object run() {
+					copyingToBytes(Type.DATA, key);
+					return copyingFromBytes(valueBytes);
+				}
+			},
+			new Op("get (KV)") {
+				@Override
+				Object run() {
+					KV.toBytes(Type.DATA, key, ClassRegistry.NONE);
+					return KV.fromBytes(valueBytes, ClassRegistry.NONE);
+				}
+			},
+			new Op("decode key (copying)") {
+				@Override
+				Object run() {
+					return copyingFromBytes(keyBytes);
+				}
+			},
+			new Op("decode key (KV)") {
+				@Override
+				Object run() {
+					return KV.fromBytes(keyBytes, ClassRegistry.NONE);
+				}
+			},
+		};
+
+		// Warm up, then measure.
+		for (Op op : ops) {
+			op.measure(iterations / 10);
+		}
+
+		System.out.println(String.format("%-22s %12s %10s", "operation", "bytes/op", "ns/op"));
+		for (Op op : ops) {
+			long[] result = op.measure(iterations);
+			System.out.println(String.format("%-22s %12.1f %10.1f", op.name,
+					(double) result[0] / iterations, (double) result[1] / iterations));
+		}
+	}
+
+	/** Framing as KV did it before: pickle, then copy behind a type byte. */
+	static byte[] copyingToBytes(Type type, Object obj) {
+		byte[] pickled = Pickler.pickle(obj);
+		ByteBuffer buffer = ByteBuffer.allocate(1 + pickled.length);
+		buffer.put((byte) type.ordinal());
+		buffer.put(pickled);
+		return buffer.array();
+	}
+
+	/** Framing as KV did it before: copy everything but the type byte. */
+	static Object copyingFromBytes(byte[] bytes) {
+		return Pickler.unpickle(Arrays.copyOfRange(bytes, 1, bytes.length));
+	}
+
+
+	static abstract class Op {
+
+		final String name;
+		Object sink;
+
+		Op(String name) {
+			this.name = name;
+		}
+
+		abstract Object run();
+
+		/**
+		 * Returns bytes allocated and nanoseconds taken.
+		 */
+		long[] measure(int iterations) {
+			long thread = Thread.currentThread().getId();
+			long bytes = THREADS.getThreadAllocatedBytes(thread);
+			long start = System.nanoTime();
+
+			for (int i = 0; i < iterations; i++) {
+				sink = run();
+			}
+
+			long nanos = System.nanoTime() - start;
+			return new long[] {THREADS.getThreadAllocatedBytes(thread) - bytes, nanos};
+		}
+
+	}
+
+}
@@ -0,0 +1,155 @@
+package pickle.cdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import pickle.KV;
+import pickle.KV.Type;
+
+import com.strangegizmo.cdb.CdbMake;
+
+/**
+ * Tests CdbMap's files, and the entry and distinct key
+ * counts it keeps in them.
+ *
+ * @author Michael Lieberman
+ */
+public class CdbMapTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	protected String path(String name) {
+		return folder.getRoot().getPath() + "/" + name;
+	}
+
+	/**
+	 * Makes a file of keys 0 to 99, with 10, 20 ... 90 put twice in a row,
+	 * and 0 put again at the end, where it isn't counted as a duplicate.
+	 */
+	protected String make(String name) throws Exception {
+		String file = path(name);
+		CdbMap<Integer, String> map = new CdbMap<Integer, String>(file, CdbMap.Mode.CREATE);
+
+		Map<Integer, String> entries = new LinkedHashMap<Integer, String>();
+		for (int i = 0; i < 100; i++) {
+			map.put(i, "v" + i);
+			if (i > 0 && i % 10 == 0) {
+				map.put(i, "w" + i);
+			}
+			if (i >= 100 - 5) {
+				entries.put(i + 1000, "p" + i);
+			}
+		}
+		map.putAll(entries);
+		map.put(0, "again");
+
+		map.close();
+		return file;
+	}
+
+	@Test
+	public void readsBackWhatWasPut() throws Exception {
+		CdbMap<Integer, String> map = new CdbMap<Integer, String>(make("read.cdb"));
+		try {
+			assertEquals("v1", map.get(1));
+			assertTrue(map.get(10).equals("v10") || map.get(10).equals("w10"));
+			assertEquals("p99", map.get(1099));
+			assertNull(map.get(100));
+
+			List<String> values = new ArrayList<String>();
+			for (String value : map.getAll(10)) {
+				values.add(value);
+			}
+			assertEquals(2, values.size());
+			assertTrue(values.contains("v10") && values.contains("w10"));
+
+			Map<Integer, String> many = map.getMany(Arrays.asList(1, 2, 100));
+			assertEquals(2, many.size());
+			assertEquals("v2", many.get(2));
+		} finally {
+			map.close();
+		}
+	}
+
+	@Test
+	public void countsAreReadFromTheFile() throws Exception {
+		CdbMap<Integer, String> map = new CdbMap<Integer, String>(make("counts.cdb"));
+		try {
+			// Known on open, without walking the file.
+			assertEquals(106, map.size);
+			assertEquals(115, map.sizeWithDups);
+
+			assertEquals(106, map.size());
+			assertEquals(115, map.sizeWithDups());
+			assertEquals(106, map.keySet().size());
+			assertEquals(115, count(map.keySet().iterator()));
+		} finally {
+			map.close();
+		}
+	}
+
+	@Test
+	public void emptyFileCountsNothing() throws Exception {
+		String file = path("empty.cdb");
+		new CdbMap<Integer, String>(file, CdbMap.Mode.CREATE).close();
+
+		CdbMap<Integer, String> map = new CdbMap<Integer, String>(file);
+		try {
+			assertEquals(0, map.size());
+			assertEquals(0, map.sizeWithDups());
+			assertEquals(0, count(map.keySet().iterator()));
+		} finally {
+			map.close();
+		}
+	}
+
+	@Test
+	public void filesWithoutCountsAreCounted() throws Exception {
+		// As written before the counts and the class registry.
+		String file = path("old.cdb");
+		CdbMake make = new CdbMake();
+		make.start(file);
+		for (int i = 0; i < 50; i++) {
+			make.add(KV.toBytes(Type.DATA, i), KV.toBytes(Type.DATA, "v" + i));
+			if (i % 10 == 0) {
+				make.add(KV.toBytes(Type.DATA, i), KV.toBytes(Type.DATA, "w" + i));
+			}
+		}
+		make.finish();
+
+		CdbMap<Integer, String> map = new CdbMap<Integer, String>(file);
+		try {
+			assertEquals(-1, map.size);
+			assertEquals(-1, map.sizeWithDups);
+
+			assertEquals(50, map.size());
+			assertEquals(55, map.sizeWithDups());
+			assertEquals("v7", map.get(7));
+		} finally {
+			map.close();
+		}
+	}
+
+	protected static int count(Iterator<?> iterator) {
+		int count = 0;
+		while (iterator.hasNext()) {
+			iterator.next();
+			count++;
+		}
+		return count;
+	}
+
+}
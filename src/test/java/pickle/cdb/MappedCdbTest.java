@@ -0,0 +1,194 @@
+package pickle.cdb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.strangegizmo.cdb.Cdb;
+import com.strangegizmo.cdb.CdbMake;
+
+/**
+ * Tests that MappedCdb finds what {@link Cdb} finds in
+ * files made by {@link CdbMake}.
+ *
+ * @author Michael Lieberman
+ */
+public class MappedCdbTest {
+
+	protected static final int KEYS = 2000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	protected String file;
+	protected List<byte[][]> records = new ArrayList<byte[][]>();
+	protected MappedCdb mapped;
+	protected Cdb cdb;
+
+	@Before
+	public void setUp() throws Exception {
+		file = folder.newFile("test.cdb").getPath();
+
+		// Enough keys to share hash tables and collide in them.
+		for (int i = 0; i < KEYS; i++) {
+			records.add(new byte[][]{key(i), ("value" + i).getBytes()});
+		}
+		// Duplicates, some not next to the first.
+		for (int i = 0; i < KEYS; i += 100) {
+			records.add(new byte[][]{key(i), ("again" + i).getBytes()});
+			records.add(new byte[][]{key(i), ("and again" + i).getBytes()});
+		}
+		records.add(new byte[][]{new byte[0], "empty key".getBytes()});
+		records.add(new byte[][]{"empty value".getBytes(), new byte[0]});
+
+		CdbMake make = new CdbMake();
+		make.start(file);
+		for (byte[][] record : records) {
+			make.add(record[0], record[1]);
+		}
+		make.finish();
+
+		mapped = new MappedCdb(file);
+		cdb = new Cdb(file);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		mapped.close();
+		cdb.close();
+	}
+
+	protected static byte[] key(int i) {
+		return ("key" + i).getBytes();
+	}
+
+	@Test
+	public void findsWhatCdbFinds() {
+		for (int i = 0; i < KEYS; i++) {
+			assertArrayEquals(cdb.find(key(i)), mapped.find(key(i)));
+		}
+
+		assertArrayEquals("empty key".getBytes(), mapped.find(new byte[0]));
+		assertArrayEquals(new byte[0], mapped.find("empty value".getBytes()));
+	}
+
+	@Test
+	public void missingKeysAreNotFound() {
+		assertNull(mapped.find(key(KEYS)));
+		assertNull(mapped.find("value1".getBytes()));
+		assertTrue(mapped.findAll(key(-1)).isEmpty());
+	}
+
+	@Test
+	public void findsEveryValueInCdbOrder() {
+		for (int i = 0; i < KEYS; i += 50) {
+			List<byte[]> expected = new ArrayList<byte[]>();
+			cdb.findstart(key(i));
+			for (byte[] data = cdb.findnext(key(i)); data != null; data = cdb.findnext(key(i))) {
+				expected.add(data);
+			}
+
+			List<byte[]> found = mapped.findAll(key(i));
+			assertEquals(expected.size(), found.size());
+			assertEquals(i % 100 == 0 ? 3 : 1, found.size());
+			for (int j = 0; j < found.size(); j++) {
+				assertArrayEquals(expected.get(j), found.get(j));
+			}
+		}
+	}
+
+	@Test
+	public void iteratesInFileOrder() {
+		Iterator<Map.Entry<byte[], byte[]>> iterator = mapped.iterator();
+
+		for (byte[][] record : records) {
+			assertTrue(iterator.hasNext());
+			Map.Entry<byte[], byte[]> entry = iterator.next();
+			assertArrayEquals(record[0], entry.getKey());
+			assertArrayEquals(record[1], entry.getValue());
+		}
+
+		assertFalse(iterator.hasNext());
+	}
+
+	@Test
+	public void emptyFileHasNothing() throws Exception {
+		String empty = folder.newFile("empty.cdb").getPath();
+		CdbMake make = new CdbMake();
+		make.start(empty);
+		make.finish();
+
+		MappedCdb emptyCdb = new MappedCdb(empty);
+		try {
+			assertNull(emptyCdb.find(key(0)));
+			assertFalse(emptyCdb.iterator().hasNext());
+		} finally {
+			emptyCdb.close();
+		}
+	}
+
+	@Test
+	public void readsFromManyThreadsAtOnce() throws Exception {
+		final List<byte[]> expected = new ArrayList<byte[]>();
+		for (int i = 0; i < KEYS; i++) {
+			expected.add(cdb.find(key(i)));
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+
+			for (int t = 0; t < 8; t++) {
+				final int offset = t;
+				results.add(pool.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() {
+						int wrong = 0;
+						for (int round = 0; round < 5; round++) {
+							for (int i = offset; i < KEYS; i += 3) {
+								if (!Arrays.equals(expected.get(i), mapped.find(key(i)))) {
+									wrong++;
+								}
+							}
+
+							int walked = 0;
+							for (Iterator<Map.Entry<byte[], byte[]>> it = mapped.iterator(); it.hasNext();) {
+								it.next();
+								walked++;
+							}
+							if (walked != records.size()) {
+								wrong++;
+							}
+						}
+						return wrong;
+					}
+				}));
+			}
+
+			for (Future<Integer> result : results) {
+				assertEquals(0, result.get().intValue());
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+}
@@ -0,0 +1,240 @@
+package pickle.leveldb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that LevelDBMap's in-memory size stays exact, is stored
+ * by flush() and close(), and is recounted after a crash or
+ * blind writes.
+ *
+ * @author Michael Lieberman
+ */
+public class LevelDBMapSizeTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	protected String dir;
+	protected LevelDBMap<Integer, String> map;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = folder.getRoot().getPath() + "/db";
+		map = new LevelDBMap<Integer, String>(dir, true);
+	}
+
+	@After
+	public void tearDown() {
+		map.close();
+	}
+
+	protected void reopen() throws Exception {
+		map.close();
+		map = new LevelDBMap<Integer, String>(dir);
+	}
+
+	/**
+	 * Closes the database without storing the size, as a crash would.
+	 */
+	protected void crashAndReopen() throws Exception {
+		map.db.close();
+		map.db = null;
+		map = new LevelDBMap<Integer, String>(dir);
+	}
+
+	protected int count() {
+		int count = 0;
+		for (Integer key : map.keySet()) {
+			count++;
+		}
+		return count;
+	}
+
+	@Test
+	public void countsOnlyChanges() {
+		for (int i = 0; i < 100; i++) {
+			assertNull(map.put(i, "v" + i));
+		}
+		for (int i = 0; i < 50; i++) {
+			assertEquals("v" + i, map.put(i, "w" + i));
+		}
+		for (int i = 0; i < 10; i++) {
+			map.remove(i);
+		}
+		map.remove(1000);
+
+		assertEquals(90, map.size());
+		assertFalse(map.sizeStale);
+	}
+
+	@Test
+	public void batchesCountOnlyChanges() {
+		Map<Integer, String> entries = new HashMap<Integer, String>();
+		for (int i = 0; i < 30; i++) {
+			entries.put(i, "v" + i);
+		}
+		map.setBatchSize(7);
+		map.putAll(entries);
+
+		for (int i = 20; i < 40; i++) {
+			entries.put(i, "w" + i);
+		}
+		map.putAll(entries);
+		assertEquals(40, map.size());
+
+		List<Integer> keys = new ArrayList<Integer>();
+		for (int i = 35; i < 50; i++) {
+			keys.add(i);
+		}
+		map.removeAll(keys);
+
+		assertEquals(35, map.size());
+		assertEquals(35, count());
+		assertFalse(map.sizeStale);
+	}
+
+	@Test
+	public void closeStoresTheSize() throws Exception {
+		for (int i = 0; i < 100; i++) {
+			map.put(i, "v" + i);
+		}
+		map.remove(0);
+
+		reopen();
+
+		assertFalse(map.sizeDirty);
+		assertNull(map.db.get(LevelDBMap.SIZESTALE));
+		assertEquals(99, map.size());
+	}
+
+	@Test
+	public void flushStoresTheSizeAndClearsTheMarker() throws Exception {
+		map.put(1, "a");
+		assertNotNull(map.db.get(LevelDBMap.SIZESTALE));
+
+		map.flush();
+		assertNull(map.db.get(LevelDBMap.SIZESTALE));
+		assertFalse(map.sizeDirty);
+
+		// Nothing written since, so nothing to recount.
+		crashAndReopen();
+		assertFalse(map.sizeStale);
+		assertEquals(1, map.size());
+
+		// The next write marks it again.
+		map.put(2, "b");
+		assertTrue(map.sizeDirty);
+		assertNotNull(map.db.get(LevelDBMap.SIZESTALE));
+	}
+
+	@Test
+	public void crashIsRecounted() throws Exception {
+		for (int i = 0; i < 50; i++) {
+			map.put(i, "v" + i);
+		}
+		map.flush();
+
+		for (int i = 50; i < 70; i++) {
+			map.put(i, "v" + i);
+		}
+		for (int i = 0; i < 5; i++) {
+			map.remove(i);
+		}
+
+		crashAndReopen();
+
+		assertTrue(map.sizeStale);
+		assertEquals(65, map.size());
+		assertFalse(map.sizeStale);
+
+		// And stored clean once recounted.
+		map.put(100, "x");
+		reopen();
+		assertFalse(map.sizeStale);
+		assertEquals(66, map.size());
+	}
+
+	@Test
+	public void blindWritesAreRecounted() throws Exception {
+		for (int i = 0; i < 10; i++) {
+			map.put(i, "v" + i);
+		}
+		for (int i = 5; i < 15; i++) {
+			map.set(i, "s" + i);
+		}
+		assertTrue(map.sizeStale);
+
+		assertEquals(15, map.size());
+		assertFalse(map.sizeStale);
+
+		// Counting carries on from the recount.
+		map.put(20, "x");
+		map.remove(0);
+		assertEquals(15, map.size());
+
+		reopen();
+		assertEquals(15, map.size());
+		assertEquals(15, count());
+	}
+
+	@Test
+	public void concurrentWritesKeepTheSizeExact() throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Object>> results = new ArrayList<Future<Object>>();
+
+			// Overlapping keys, so threads race to add and remove the same ones.
+			for (int t = 0; t < 8; t++) {
+				final Random random = new Random(t);
+				results.add(pool.submit(new Callable<Object>() {
+					@Override
+					public Object call() {
+						for (int i = 0; i < 2000; i++) {
+							int key = random.nextInt(200);
+							if (random.nextInt(3) == 0) {
+								map.remove(key);
+							}
+							else {
+								map.put(key, "v" + key);
+							}
+						}
+						return null;
+					}
+				}));
+			}
+
+			for (Future<Object> result : results) {
+				result.get();
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+
+		assertFalse(map.sizeStale);
+		assertEquals(count(), map.size());
+
+		reopen();
+		assertEquals(count(), map.size());
+	}
+
+}
@@ -0,0 +1,181 @@
+package pickle.leveldb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests NavigableLevelDBMap against a TreeMap with the same
+ * entries, and that ordered and plain databases can't be
+ * opened as each other.
+ *
+ * @author Michael Lieberman
+ */
+public class NavigableLevelDBMapTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	protected List<LevelDBMap<?, ?>> maps = new ArrayList<LevelDBMap<?, ?>>();
+	protected NavigableLevelDBMap<Integer, String> map;
+	protected TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+
+	@Before
+	public void setUp() throws Exception {
+		map = open(dir("nav"), true);
+
+		// Negative and positive keys, which Kryo's encoding orders wrongly.
+		Random random = new Random(1);
+		for (int i = 0; i < 300; i++) {
+			int key = random.nextInt(400) - 200;
+			map.put(key, "v" + key);
+			expected.put(key, "v" + key);
+		}
+	}
+
+	@After
+	public void tearDown() {
+		for (LevelDBMap<?, ?> open : maps) {
+			open.close();
+		}
+	}
+
+	protected String dir(String name) {
+		return folder.getRoot().getPath() + "/" + name;
+	}
+
+	protected <K, V> NavigableLevelDBMap<K, V> open(String dir, boolean clear) throws Exception {
+		NavigableLevelDBMap<K, V> opened = new NavigableLevelDBMap<K, V>(dir, clear);
+		maps.add(opened);
+		return opened;
+	}
+
+	@Test
+	public void iteratesInKeyOrder() {
+		assertEquals(expected.size(), map.size());
+		assertEquals(new ArrayList<Integer>(expected.keySet()), new ArrayList<Integer>(map.keySet()));
+		assertEquals(new ArrayList<Integer>(expected.descendingKeySet()), new ArrayList<Integer>(map.descendingKeySet()));
+		assertEquals(expected.firstKey(), map.firstKey());
+		assertEquals(expected.lastKey(), map.lastKey());
+	}
+
+	@Test
+	public void navigatesLikeATreeMap() {
+		for (int key = -210; key <= 210; key++) {
+			assertEquals(expected.ceilingKey(key), map.ceilingKey(key));
+			assertEquals(expected.floorKey(key), map.floorKey(key));
+			assertEquals(expected.higherKey(key), map.higherKey(key));
+			assertEquals(expected.lowerKey(key), map.lowerKey(key));
+		}
+	}
+
+	@Test
+	public void viewsMatchTreeMapViews() {
+		Random random = new Random(2);
+		for (int i = 0; i < 100; i++) {
+			int from = random.nextInt(420) - 210;
+			int to = from + random.nextInt(100);
+			boolean fromInclusive = random.nextBoolean();
+			boolean toInclusive = random.nextBoolean();
+
+			NavigableMap<Integer, String> view = map.subMap(from, fromInclusive, to, toInclusive);
+			NavigableMap<Integer, String> expectedView = expected.subMap(from, fromInclusive, to, toInclusive);
+
+			assertEquals(expectedView, view);
+			assertEquals(expectedView.size(), view.size());
+			assertEquals(new ArrayList<Integer>(expectedView.descendingKeySet()),
+					new ArrayList<Integer>(view.descendingKeySet()));
+
+			for (int key = from - 5; key <= to + 5; key += 3) {
+				assertEquals(expectedView.ceilingKey(key), view.ceilingKey(key));
+				assertEquals(expectedView.floorKey(key), view.floorKey(key));
+				assertEquals(expectedView.descendingMap().higherKey(key), view.descendingMap().higherKey(key));
+			}
+
+			assertEquals(expected.headMap(from, fromInclusive), map.headMap(from, fromInclusive));
+			assertEquals(expected.tailMap(from, fromInclusive), map.tailMap(from, fromInclusive));
+		}
+	}
+
+	@Test
+	public void viewsRejectKeysOutOfRange() {
+		try {
+			map.subMap(5, 1);
+			fail("Made an inverted view");
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+
+		try {
+			map.subMap(1, 10).put(20, "x");
+			fail("Put outside the view");
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void pollsAndClearsViews() throws Exception {
+		assertEquals(expected.pollFirstEntry().getKey(), map.pollFirstEntry().getKey());
+		assertEquals(expected.pollLastEntry().getKey(), map.pollLastEntry().getKey());
+
+		map.subMap(-50, 50).clear();
+		expected.subMap(-50, 50).clear();
+
+		assertEquals(expected, map);
+		assertEquals(expected.size(), map.size());
+
+		map.close();
+		map = open(dir("nav"), false);
+		assertEquals(expected, map);
+	}
+
+	@Test
+	public void emptyMapHasNoNeighbours() throws Exception {
+		NavigableLevelDBMap<String, String> empty = open(dir("empty"), true);
+
+		assertNull(empty.firstEntry());
+		assertNull(empty.floorKey("x"));
+		assertEquals(0, empty.descendingMap().size());
+
+		empty.put("m", "1");
+		assertEquals("m", empty.descendingMap().firstKey());
+		assertNull(empty.lowerKey("m"));
+		assertEquals("m", empty.floorKey("z"));
+	}
+
+	@Test
+	public void plainAndOrderedDatabasesDontMix() throws Exception {
+		LevelDBMap<String, String> plain = new LevelDBMap<String, String>(dir("plain"), true);
+		plain.put("a", "b");
+		plain.close();
+
+		try {
+			open(dir("plain"), false);
+			fail("Opened a plain database as ordered");
+		} catch (IllegalStateException e) {
+			// Expected.
+		}
+
+		map.close();
+		try {
+			maps.add(new LevelDBMap<Integer, String>(dir("nav"), false));
+			fail("Opened an ordered database as plain");
+		} catch (IllegalStateException e) {
+			// Expected.
+		}
+	}
+
+}
@@ -0,0 +1,97 @@
+package pickle.mapdb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Tests that nodes' keys come back as they were written,
+ * and that keys close together pack small.
+ *
+ * @author Michael Lieberman
+ */
+public class LongKeySerializerTest {
+
+	protected LongKeySerializer serializer = new LongKeySerializer();
+
+	protected byte[] serialize(int start, int end, Object[] keys) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		serializer.serialize(new DataOutputStream(bytes), start, end, keys);
+		return bytes.toByteArray();
+	}
+
+	protected Object[] roundTrip(int start, int end, Object[] keys) throws IOException {
+		byte[] bytes = serialize(start, end, keys);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+
+		Object[] read = serializer.deserialize(in, start, end, keys.length);
+		assertEquals("unread bytes", 0, in.available());
+		return read;
+	}
+
+	@Test
+	public void ascendingKeysRoundTrip() throws IOException {
+		Object[] keys = {-1000000L, -5L, -1L, 0L, 1L, 127L, 128L, 1L << 40, 1L << 62};
+		assertArrayEquals(keys, roundTrip(0, keys.length, keys));
+	}
+
+	@Test
+	public void extremesRoundTrip() throws IOException {
+		// Differences that overflow a long.
+		Object[] keys = {Long.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, 0L, Long.MAX_VALUE, -1L};
+		assertArrayEquals(keys, roundTrip(0, keys.length, keys));
+	}
+
+	@Test
+	public void descendingKeysRoundTrip() throws IOException {
+		// As written for a reversed comparator.
+		Object[] keys = {1L << 50, 300L, 2L, -2L, -300L, Long.MIN_VALUE + 1};
+		assertArrayEquals(keys, roundTrip(0, keys.length, keys));
+	}
+
+	@Test
+	public void onlyTheGivenRangeIsWritten() throws IOException {
+		// A node's first slot can be left empty.
+		Object[] keys = {null, 10L, 11L, 12L, null};
+		Object[] read = roundTrip(1, 4, keys);
+
+		assertNull(read[0]);
+		assertEquals(10L, read[1]);
+		assertEquals(12L, read[3]);
+		assertNull(read[4]);
+		assertEquals(keys.length, read.length);
+	}
+
+	@Test
+	public void closeKeysPackInAByteEach() throws IOException {
+		Object[] keys = new Object[100];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = (long) i * 3 - 150;
+		}
+
+		// The first key takes two bytes, the differences one each.
+		assertEquals(2 + 99, serialize(0, keys.length, keys).length);
+		assertArrayEquals(keys, roundTrip(0, keys.length, keys));
+	}
+
+	@Test
+	public void zigzagKeepsSmallNumbersSmall() {
+		assertEquals(0, LongKeySerializer.zigzag(0));
+		assertEquals(1, LongKeySerializer.zigzag(-1));
+		assertEquals(2, LongKeySerializer.zigzag(1));
+		assertEquals(-1L, LongKeySerializer.zigzag(Long.MIN_VALUE));
+
+		for (long n : new long[]{0, 1, -1, 63, -64, Long.MAX_VALUE, Long.MIN_VALUE}) {
+			assertEquals(n, LongKeySerializer.unzigzag(LongKeySerializer.zigzag(n)));
+		}
+	}
+
+}
@@ -0,0 +1,152 @@
+package pickle.mapdb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that MapDBMap's entries, and the classes pickled
+ * in them, survive closing and reopening.
+ *
+ * @author Michael Lieberman
+ */
+public class MapDBMapTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	protected List<MapDBMap<?, ?>> maps = new ArrayList<MapDBMap<?, ?>>();
+
+	@After
+	public void tearDown() {
+		for (MapDBMap<?, ?> map : maps) {
+			map.close();
+		}
+	}
+
+	protected <K, V> MapDBMap<K, V> open(MapDBConfig config) {
+		MapDBMap<K, V> map = new MapDBMap<K, V>(folder.getRoot().getPath() + "/db", config);
+		maps.add(map);
+		return map;
+	}
+
+	protected <K, V> MapDBMap<K, V> reopen(MapDBMap<K, V> map, MapDBConfig config) {
+		map.close();
+		maps.remove(map);
+		return open(config);
+	}
+
+	@Test
+	public void longKeysSurviveReopening() {
+		for (boolean asyncWrite : new boolean[]{false, true}) {
+			MapDBConfig config = new MapDBConfig().keys(MapDBConfig.Keys.LONG).asyncWrite(asyncWrite);
+
+			MapDBMap<Long, String> map = open(config);
+			map.clear();
+			for (long i = -500; i < 500; i++) {
+				map.put(i * 1000, "v" + i);
+			}
+			map.put(Long.MIN_VALUE, "min");
+			map.put(Long.MAX_VALUE, "max");
+
+			map = reopen(map, config);
+
+			assertEquals(1002, map.size());
+			assertEquals(Long.MIN_VALUE, map.firstKey().longValue());
+			assertEquals(Long.MAX_VALUE, map.lastKey().longValue());
+			assertEquals("min", map.get(Long.MIN_VALUE));
+			assertEquals("v-500", map.higherEntry(Long.MIN_VALUE).getValue());
+			assertEquals("v-1", map.floorEntry(-1L).getValue());
+			assertEquals("v0", map.ceilingEntry(-999L).getValue());
+
+			long previous = Long.MIN_VALUE;
+			for (long key : map.keySet()) {
+				assertEquals(true, key >= previous);
+				previous = key;
+			}
+
+			map.close();
+			maps.remove(map);
+		}
+	}
+
+	@Test
+	public void pickledClassesSurviveReopening() {
+		for (MapDBConfig.Keys keys : new MapDBConfig.Keys[]{MapDBConfig.Keys.PICKLE, MapDBConfig.Keys.STRING}) {
+			MapDBConfig config = new MapDBConfig().keys(keys).pickleValues(true);
+
+			MapDBMap<String, Pojo> map = open(config);
+			map.clear();
+			for (int i = 0; i < 100; i++) {
+				map.put("k" + i, new Pojo(i));
+			}
+
+			map = reopen(map, config);
+
+			assertEquals(100, map.size());
+			for (int i = 0; i < 100; i++) {
+				assertEquals(new Pojo(i), map.get("k" + i));
+			}
+
+			// A class first written after reopening gets the next ID.
+			map.put("more", new OtherPojo(-1));
+			map = reopen(map, config);
+			assertEquals(OtherPojo.class, map.get("more").getClass());
+			assertEquals(new Pojo(-1), map.get("more"));
+			assertEquals(new Pojo(7), map.get("k7"));
+
+			map.close();
+			maps.remove(map);
+		}
+	}
+
+	public static class Pojo implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		protected int n;
+		protected String name;
+
+		public Pojo() {
+
+		}
+
+		public Pojo(int n) {
+			this.n = n;
+			this.name = "name" + n;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Pojo && ((Pojo) o).n == n && ((Pojo) o).name.equals(name);
+		}
+
+		@Override
+		public int hashCode() {
+			return n;
+		}
+
+	}
+
+	public static class OtherPojo extends Pojo {
+
+		private static final long serialVersionUID = 1L;
+
+		public OtherPojo() {
+
+		}
+
+		public OtherPojo(int n) {
+			super(n);
+		}
+
+	}
+
+}